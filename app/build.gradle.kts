@@ -53,6 +53,11 @@ android {
         jvmTarget = "1.8"
     }
 
+    testOptions {
+        // The danmaku engine is tested on the JVM, Android classes only need to exist
+        unitTests.isReturnDefaultValues = true
+    }
+
     signingConfigs {
         create("release") {
             (keystoreProperties["keyAlias"] as String?)?.let {
@@ -81,4 +86,6 @@ dependencies {
     implementation("androidx.preference:preference:1.2.0")
     implementation("androidx.recyclerview:recyclerview:1.2.1")
     implementation("com.google.android.material:material:1.9.0-alpha01")
+
+    testImplementation("junit:junit:4.13.2")
 }
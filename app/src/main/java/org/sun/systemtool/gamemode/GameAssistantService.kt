@@ -13,6 +13,10 @@ import android.os.HandlerThread
 import android.os.IBinder
 import android.os.Looper
 
+import java.io.FileDescriptor
+import java.io.PrintWriter
+
+import org.sun.systemtool.gamemode.controller.DanmakuController
 import org.sun.systemtool.gamemode.controller.GamePanelViewController
 import org.sun.systemtool.gamemode.observer.DisplayResolutionChangeListener
 import org.sun.systemtool.gamemode.observer.GameModeGestureListener
@@ -53,6 +57,10 @@ class GameAssistantService : Service() {
         super.onDestroy()
     }
 
+    override fun dump(fd: FileDescriptor, pw: PrintWriter, args: Array<out String>?) {
+        DanmakuController.dump(pw)
+    }
+
     override fun onConfigurationChanged(newConfig: Configuration) {
         newConfig.orientation.takeIf { orientation != it }?.let {
             orientation = it
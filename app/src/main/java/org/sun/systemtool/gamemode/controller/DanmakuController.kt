@@ -7,15 +7,22 @@ package org.sun.systemtool.gamemode.controller
 
 import android.graphics.Color
 import android.graphics.PixelFormat
+import android.os.Looper
 import android.view.Gravity
 import android.view.View
 import android.view.WindowManager.LayoutParams
 
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+
 import org.sun.systemtool.R
 import org.sun.systemtool.common.IconDrawableHelper
 import org.sun.systemtool.common.Utils.logD
 import org.sun.systemtool.gamemode.observer.NotificationListener
 import org.sun.systemtool.gamemode.util.Shared.portrait
+import org.sun.systemtool.gamemode.util.Shared.screenHeight
 import org.sun.systemtool.gamemode.util.Shared.screenShortWidth
 import org.sun.systemtool.gamemode.util.Shared.screenWidth
 import org.sun.systemtool.gamemode.util.Shared.service
@@ -25,6 +32,7 @@ import top.littlefogcat.easydanmaku.Danmakus
 import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
 import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
 import top.littlefogcat.easydanmaku.ui.DanmakuView
+import top.littlefogcat.esus.view.util.Histogram
 
 object DanmakuController {
 
@@ -39,9 +47,17 @@ object DanmakuController {
     private const val HEIGHT_RATIO_PORT = 0.16f
     private const val HEIGHT_RATIO_LAND = 0.16f
 
+    // Enough for a burst of notifications right after the overlay is shown
+    private const val PREWARM_COUNT = 16
+
+    private const val DEFAULT_IDLE_TIMEOUT = 30_000L
+
+    private const val DUMP_TIMEOUT_MILLIS = 1_000L
+
     init {
         Danmakus.Options.apply {
             antiCoverEnabled = true
+            cacheEnabled = true
         }
         Danmakus.Globals.apply {
             baseTextSize = screenShortWidth * TEXT_SIZE_RATIO
@@ -54,7 +70,6 @@ object DanmakuController {
 
     private val layoutParams = LayoutParams().apply {
         gravity = Gravity.TOP
-        height = LayoutParams.MATCH_PARENT
         format = PixelFormat.TRANSLUCENT
         flags = LayoutParams.FLAG_LAYOUT_NO_LIMITS or
                 LayoutParams.FLAG_LAYOUT_IN_SCREEN or
@@ -72,6 +87,25 @@ object DanmakuController {
 
     private var runTime = 0L
 
+    /**
+     * Time in millis the overlay is kept after the last danmaku is gone. After that, the window, its surface and the
+     * ESUS thread are released until the next danmaku arrives.
+     */
+    var idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT
+
+    private val teardownTask = Runnable {
+        logD(TAG, "overlay idle for ${idleTimeoutMillis}ms")
+        removeOverlay()
+    }
+
+    /** Time from starting to create the overlay to it posted, in the main thread **/
+    private val overlayCreateCost = Histogram("overlayCreate")
+
+    /** Time from starting to create the overlay to its first frame posted **/
+    private val overlayFirstFrame = Histogram("overlayFirstFrame")
+
+    private var overlaysCreated = 0L
+
     fun startListening() {
         service.mainHandler.post {
             if (listening) {
@@ -80,27 +114,7 @@ object DanmakuController {
             logD(TAG, "startListening")
 
             listening = true
-            val currentTime = System.currentTimeMillis()
-
-            danmakuView = View.inflate(service, R.layout.layout_danmaku, null) as DanmakuView?
-            danmakuView?.apply {
-                setShow(true)
-                setActionOnFrame {
-                    runTime = System.currentTimeMillis() - currentTime
-                    time = runTime
-                }
-                setDisplayArea(if (portrait) DISPLAY_AREA_PORT else DISPLAY_AREA_LAND)
-                setScrollDuration(if (portrait) SCROLL_DURATION_PORT else SCROLL_DURATION_LAND)
-            }
-            windowManager.addView(danmakuView, LayoutParams().apply {
-                copyFrom(layoutParams)
-                width = screenWidth
-                y = if (portrait) {
-                    screenShortWidth * HEIGHT_RATIO_PORT
-                } else {
-                    screenShortWidth * HEIGHT_RATIO_LAND
-                }.toInt()
-            })
+            // The overlay is created when the first danmaku arrives
             notificationListener.registered = true
         }
     }
@@ -114,63 +128,162 @@ object DanmakuController {
 
             listening = false
             notificationListener.registered = false
-
-            danmakuView?.finish()
-            windowManager.removeViewImmediate(danmakuView)
-            danmakuView = null
+            removeOverlay()
         }
     }
 
     fun updateLayout() {
-        if (!listening) {
+        if (!listening || danmakuView == null) {
             return
         }
         logD(TAG, "updateLayout")
 
-        notificationListener.suspended = true
+        reconfigure(
+            screenWidth,
+            if (portrait) DISPLAY_AREA_PORT else DISPLAY_AREA_LAND,
+            if (portrait) SCROLL_DURATION_PORT else SCROLL_DURATION_LAND
+        )
+    }
 
-        // Force remove current danmaku
-        danmakuView?.finish()
-        windowManager.removeViewImmediate(danmakuView)
+    /**
+     * Resizes the window of the current overlay to a band of [displayArea] of the screen and [width] wide, and
+     * changes the scroll duration. Danmakus shown keep their process and are moved onto the new size by the view,
+     * instead of being dropped with a new window. The duration is applied with the new size, so that they are
+     * moved once.
+     */
+    private fun reconfigure(width: Int, displayArea: Float, scrollDuration: Int) {
+        val view = danmakuView ?: return
+        val params = createLayoutParams(width, displayArea)
+        if (params.width != view.width || params.height != view.height) {
+            view.setScrollDurationOnResize(scrollDuration)
+        } else {
+            view.setScrollDuration(scrollDuration)
+        }
+        windowManager.updateViewLayout(view, params)
+    }
 
+    private fun createOverlay() {
+        val start = System.nanoTime()
         val currentTime = System.currentTimeMillis()
+        runTime = 0L
         danmakuView = View.inflate(service, R.layout.layout_danmaku, null) as DanmakuView?
         danmakuView?.apply {
+            prewarm(Danmaku.TYPE_RL, PREWARM_COUNT)
             setShow(true)
             setActionOnFrame {
                 runTime = System.currentTimeMillis() - currentTime
                 time = runTime
             }
-            setDisplayArea(if (portrait) DISPLAY_AREA_PORT else DISPLAY_AREA_LAND)
+            // The window is only as high as the band
+            setDisplayArea(1f)
             setScrollDuration(if (portrait) SCROLL_DURATION_PORT else SCROLL_DURATION_LAND)
+            setOnIdleListener { idle ->
+                service.mainHandler.post {
+                    if (danmakuView !== this) {
+                        return@post
+                    }
+                    service.mainHandler.removeCallbacks(teardownTask)
+                    if (idle) {
+                        service.mainHandler.postDelayed(teardownTask, idleTimeoutMillis)
+                    }
+                }
+            }
+            setOnFirstFrameListener { overlayFirstFrame.record(it - start) }
+        }
+        windowManager.addView(
+            danmakuView,
+            createLayoutParams(screenWidth, if (portrait) DISPLAY_AREA_PORT else DISPLAY_AREA_LAND)
+        )
+        overlaysCreated++
+        overlayCreateCost.record(System.nanoTime() - start)
+    }
+
+    private fun removeOverlay() {
+        service.mainHandler.removeCallbacks(teardownTask)
+        val view = danmakuView ?: return
+        logD(TAG, "danmaku pools: ${view.poolStats}")
+        logD(TAG, "danmaku admission: ${view.admissionStats}")
+        logD(TAG, "$overlayCreateCost")
+        logD(TAG, "$overlayFirstFrame")
+        view.setOnIdleListener(null)
+        view.setOnFirstFrameListener(null)
+        view.finish()
+        windowManager.removeViewImmediate(view)
+        danmakuView = null
+    }
+
+    /**
+     * Returns the params of the danmaku window, sized to the band danmakus are shown in, so that no translucent
+     * full-screen layer is composited over the game.
+     */
+    private fun createLayoutParams(width: Int, displayArea: Float) = LayoutParams().apply {
+        copyFrom(layoutParams)
+        this.width = width
+        height = (screenHeight * displayArea).toInt()
+        y = if (portrait) {
+            screenShortWidth * HEIGHT_RATIO_PORT
+        } else {
+            screenShortWidth * HEIGHT_RATIO_LAND
+        }.toInt()
+    }
+
+    /**
+     * Dumps the state, called on a binder thread. The state is read in the main thread where it's changed, so that a
+     * snapshot is never torn by a concurrent change.
+     */
+    fun dump(pw: PrintWriter) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            dumpInMainThread(pw)
+            return
+        }
+        val snapshot = FutureTask {
+            StringWriter().also { dumpInMainThread(PrintWriter(it)) }.toString()
+        }
+        service.mainHandler.post(snapshot)
+        try {
+            pw.print(snapshot.get(DUMP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+        } catch (e: Exception) {
+            snapshot.cancel(false)
+            pw.println("DanmakuController: main thread didn't respond in ${DUMP_TIMEOUT_MILLIS}ms")
+        }
+    }
+
+    private fun dumpInMainThread(pw: PrintWriter) {
+        pw.println("DanmakuController: listening=$listening overlay=${danmakuView != null}")
+        pw.println("  overlaysCreated=$overlaysCreated idleTimeoutMillis=$idleTimeoutMillis")
+        pw.println("  $overlayCreateCost")
+        pw.println("  $overlayFirstFrame")
+        danmakuView?.let {
+            pw.println("  activeFrames=${it.activeFrames} idleFrames=${it.idleFrames}")
+            it.frameStats?.dump(pw, "  ")
+            pw.println("  pools: ${it.poolStats}")
+            pw.println("  admission: ${it.admissionStats}")
+            pw.println("  lookahead: ${it.lookaheadStats}")
+            pw.println("  peakLiveViews=${it.peakLiveViews}")
         }
-        windowManager.addView(danmakuView, LayoutParams().apply {
-            copyFrom(layoutParams)
-            width = screenWidth
-            y = if (portrait) {
-                screenShortWidth * HEIGHT_RATIO_PORT
-            } else {
-                screenShortWidth * HEIGHT_RATIO_LAND
-            }.toInt()
-        })
-
-        notificationListener.suspended = false
     }
 
     fun postDanmaku(packageName: String, content: String) {
         service.mainHandler.post {
             logD(TAG, "postDanmaku, packageName=$packageName, content=$content")
+            if (!listening) {
+                return@post
+            }
+            // Not torn down before this danmaku is shown
+            service.mainHandler.removeCallbacks(teardownTask)
+            if (danmakuView == null) {
+                createOverlay()
+            }
             val icon = IconDrawableHelper.getDrawable(service, packageName)
-            danmakuView?.setDanmakus(
-                listOf(
-                    DanmakuItem(
-                        text = "  $content",
-                        time = runTime,
-                        type = Danmaku.TYPE_RL,
-                        color = Color.WHITE,
-                        priority = Danmakus.Constants.PRIORITY_MAX,
-                        avatar = icon
-                    )
+            danmakuView?.offerDanmaku(
+                DanmakuItem(
+                    text = "  $content",
+                    time = runTime,
+                    type = Danmaku.TYPE_RL,
+                    color = Color.WHITE,
+                    priority = Danmakus.Constants.PRIORITY_MAX,
+                    avatar = icon,
+                    avatarKey = packageName
                 )
             )
         }
@@ -38,6 +38,7 @@ import org.sun.systemtool.gamemode.util.Config.SIDE_LANDSCAPE_TOP_PADDING
 import org.sun.systemtool.gamemode.util.Config.SIDE_PORTRAIT_TOP_PADDING
 import org.sun.systemtool.gamemode.util.GestureResourceUtils
 import org.sun.systemtool.gamemode.util.Shared.portrait
+import org.sun.systemtool.gamemode.util.Shared.screenHeight
 import org.sun.systemtool.gamemode.util.Shared.screenShortWidth
 import org.sun.systemtool.gamemode.util.Shared.screenWidth
 import org.sun.systemtool.gamemode.util.Shared.service
@@ -188,9 +189,10 @@ object GamePanelViewController {
         windowManager.currentWindowMetrics.bounds.let {
             screenShortWidth = min(it.width(), it.height())
             screenWidth = it.width()
+            screenHeight = it.height()
             portrait = it.width() < it.height()
             logD(TAG, "updateScreenWidth, screenShortWidth=${screenShortWidth}" +
-                    ", screenWidth=${screenWidth}, portrait=${portrait}")
+                    ", screenWidth=${screenWidth}, screenHeight=${screenHeight}, portrait=${portrait}")
         }
     }
 
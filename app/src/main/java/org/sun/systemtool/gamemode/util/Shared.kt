@@ -26,6 +26,7 @@ object Shared {
     var portrait = true
     var screenShortWidth = 0
     var screenWidth = 0
+    var screenHeight = 0
 
     var currentGameInfo = GameInfo()
     var lastGameInfo = GameInfo()
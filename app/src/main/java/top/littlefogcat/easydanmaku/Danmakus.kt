@@ -3,6 +3,7 @@ package top.littlefogcat.easydanmaku
 import android.graphics.Color
 import android.graphics.Paint
 import android.text.TextPaint
+import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
 import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
 import top.littlefogcat.easydanmaku.ui.IDanmakuView
 
@@ -72,10 +73,41 @@ object Danmakus {
          * Implies if anti-cover mode on.
          *
          * When set to `true`, danmakus will show without overlap, and if they cannot be displayed
-         * entirely, some will be discarded by [AbstractDanmaku.priority].
+         * entirely, some will be discarded by [DanmakuItem.priority].
+         *
+         * @see admissionMaxWait
          */
         var antiCoverEnabled = true
 
+        /**
+         * Max count of danmakus given a view in one frame. Others wait for following frames.
+         */
+        var admissionPerFrame = 4
+
+        /**
+         * Max time in microseconds spent admitting danmakus in one frame. At least one danmaku is admitted per
+         * frame, others are carried over to following frames.
+         */
+        var admissionBudgetMicros = 2000
+
+        /**
+         * Max count of danmakus waiting for admission. When full, the least important one is dropped.
+         */
+        var admissionQueueSize = 64
+
+        /**
+         * Max time in millis a danmaku may wait for admission, including the time waiting for room.
+         * After that, it's dropped.
+         */
+        var admissionMaxWait = 3000
+
+        /**
+         * Danmakus due within this time in millis are measured and have their avatars rasterized on a worker
+         * thread ahead of time, so that only positioning and drawing are left for the frame admitting them.
+         * 0 to disable.
+         */
+        var lookaheadMillis = 500
+
         /**
          * Indicates how long in millis a scrolling danmaku should be shown.
          * The duration starts when the danmaku first appears, and ends at the time it's
@@ -108,6 +140,35 @@ object Danmakus {
         var opacity = 1f
 
         var recycle = true
+
+        /**
+         * Max count of recycled danmakus kept by each container, indexed by [Danmaku.type]. Read when the container
+         * is created.
+         *
+         * @see IDanmakuView.prewarm
+         */
+        var poolSizes = IntArray(4) { Danmaku.MAX_POOL_SIZE_LARGE }
+
+        /**
+         * When set to `true`, each danmaku is rasterized into a bitmap once when first drawn, and then drawn with
+         * this bitmap on each frame instead of drawing the text again.
+         *
+         * @see cacheMaxBytes
+         */
+        var cacheEnabled = false
+
+        /**
+         * Max bytes of bitmaps used by danmaku cache. Danmakus that can't get a cache are drawn directly.
+         */
+        var cacheMaxBytes = 16L * 1024 * 1024
+
+        /**
+         * Frame rate danmakus are drawn at, 0 to follow the display. Scrolling text looks smooth at 60, and a
+         * lower rate lets the display drop to the rate of the content below. Read when the view is created.
+         *
+         * @see top.littlefogcat.esus.EsusSurfaceView.frameRate
+         */
+        var frameRate = 60f
     }
 
     /**
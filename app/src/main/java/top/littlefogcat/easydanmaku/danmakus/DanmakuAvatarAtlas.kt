@@ -0,0 +1,232 @@
+package top.littlefogcat.easydanmaku.danmakus
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.PorterDuffXfermode
+import android.graphics.Rect
+import android.graphics.drawable.Drawable
+
+/**
+ * A texture atlas holding danmaku avatars.
+ *
+ * Avatars are rasterized into cells of one size, and packed in a [GRID_SIZE] x [GRID_SIZE] grid of one bitmap,
+ * keyed by [DanmakuItem.avatarKey]. When the grid is full, the least recently used avatar is evicted. So that
+ * danmakus draw a sub-rect of one bitmap instead of drawing the drawables on each frame.
+ *
+ * The cell size is the largest size avatars are drawn at, rounded up to [CELL_STEP], and smaller avatars are scaled
+ * down when drawn. It only grows, so that danmakus of different text scales don't rebuild the atlas back and forth.
+ *
+ * Danmakus record their drawing once and replay it, so a cell is held by the danmakus drawn from it, see [hold], and
+ * is never evicted or refilled while held. Otherwise a danmaku not recorded again would show the avatar of another
+ * key. When all cells are held, avatars are drawn directly.
+ *
+ * Should only be used in the ESUS main thread.
+ */
+object DanmakuAvatarAtlas {
+    private const val GRID_SIZE = 8
+    private const val MAX_ENTRIES = GRID_SIZE * GRID_SIZE
+    private const val CELL_STEP = 16
+
+    /** Avatars drawn larger than it are not put in the atlas **/
+    private const val MAX_CELL_SIZE = 256
+
+    class Entry internal constructor(val cell: Int, internal val atlas: Bitmap) {
+        var key: String? = null
+            internal set
+        var drawable: Drawable? = null
+            internal set
+        val src = Rect()
+
+        /** Count of danmakus drawn from this cell **/
+        internal var holders = 0
+    }
+
+    private val entries = LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true)
+    private val freeCells = ArrayDeque<Int>(MAX_ENTRIES)
+
+    private var bitmap: Bitmap? = null
+    private var cellSize = 0
+    private val canvas = Canvas()
+    private val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+    private val clearPaint = Paint().apply { xfermode = PorterDuffXfermode(PorterDuff.Mode.CLEAR) }
+    private val dst = Rect()
+
+    /**
+     * Draws the avatar of [key] in a [size] x [size] square at ([left], [top]) of [canvas]. [drawable] is rasterized
+     * into the atlas if it's not there yet. The caller should [hold] the returned entry while its drawing is kept.
+     *
+     * @return null if the avatar can't be put in the atlas, and [drawable] should be drawn directly.
+     */
+    fun draw(canvas: Canvas, key: String, drawable: Drawable, left: Int, top: Int, size: Int): Entry? {
+        val entry = get(key, drawable, size) ?: return null
+        dst.set(left, top, left + size, top + size)
+        canvas.drawBitmap(entry.atlas, entry.src, dst, paint)
+        return entry
+    }
+
+    /**
+     * Keeps the cell of [entry] from being evicted or refilled until [release]d, e.g. by a danmaku whose recorded
+     * drawing refers to it.
+     */
+    fun hold(entry: Entry) {
+        entry.holders++
+    }
+
+    fun release(entry: Entry) {
+        if (--entry.holders > 0) {
+            return
+        }
+        // Replaced while held, the cell is free once nobody draws from it
+        if (entry.atlas === bitmap && entries[entry.key] !== entry) {
+            freeCells.addLast(entry.cell)
+        }
+    }
+
+    fun get(key: String, drawable: Drawable, size: Int): Entry? {
+        if (size <= 0 || size > MAX_CELL_SIZE) {
+            return null
+        }
+        if (size > cellSize) {
+            grow(size)
+        }
+        val cached = entries[key]
+        if (cached != null && cached.drawable === drawable) {
+            return cached
+        }
+        val entry = reuse(cached) ?: return null
+        entry.key = key
+        entry.drawable = drawable
+        rasterize(entry, drawable)
+        entries[key] = entry
+        return entry
+    }
+
+    /**
+     * Returns whether [drawable] is in the atlas as the avatar of [key], so that it needs not be rasterized again.
+     */
+    fun contains(key: String, drawable: Drawable): Boolean {
+        return entries[key]?.drawable === drawable
+    }
+
+    /**
+     * Puts the avatar of [key] already rasterized into [source], e.g. by a worker thread, so that [drawable] doesn't
+     * need to be drawn again. [source] should be rasterized at [cellSizeOf] the size the avatar is drawn.
+     *
+     * @return false if [source] is not square, or smaller than the cells, in which case [drawable] is rasterized at
+     * the cell size when drawn.
+     */
+    fun put(key: String, drawable: Drawable, source: Bitmap): Boolean {
+        val size = source.width
+        if (size <= 0 || source.height != size || size > MAX_CELL_SIZE) {
+            return false
+        }
+        if (size > cellSize) {
+            grow(size)
+        } else if (size < cellSize) {
+            return false
+        }
+        val cached = entries[key]
+        if (cached != null && cached.drawable === drawable) {
+            return true
+        }
+        val entry = reuse(cached) ?: return false
+        entry.key = key
+        entry.drawable = drawable
+        if (beginCell(entry)) {
+            canvas.drawBitmap(source, null, entry.src, paint)
+            canvas.setBitmap(null)
+        }
+        entries[key] = entry
+        return true
+    }
+
+    /**
+     * Returns the size of the cells holding an avatar drawn at [size], i.e. the size it should be rasterized at for
+     * [put]. Can be called from any thread.
+     */
+    fun cellSizeOf(size: Int): Int = (size + CELL_STEP - 1) / CELL_STEP * CELL_STEP
+
+    /**
+     * Drops all avatars and the atlas bitmap.
+     */
+    fun clear() {
+        entries.clear()
+        freeCells.clear()
+        // Not recycled, since the display lists recorded by danmakus may still draw it on the RenderThread
+        bitmap = null
+        cellSize = 0
+    }
+
+    /**
+     * Rebuilds the atlas with cells fitting [size]. Avatars in it are dropped, and rasterized again when drawn.
+     */
+    private fun grow(size: Int) {
+        clear()
+        val cellSize = cellSizeOf(size)
+        this.cellSize = cellSize
+        bitmap = Bitmap.createBitmap(cellSize * GRID_SIZE, cellSize * GRID_SIZE, Bitmap.Config.ARGB_8888)
+        for (i in 0 until MAX_ENTRIES) {
+            freeCells.addLast(i)
+        }
+    }
+
+    /**
+     * Returns [cached] to be refilled with a new drawable of its key, or another entry if it's held.
+     */
+    private fun reuse(cached: Entry?): Entry? {
+        if (cached == null) {
+            return obtain()
+        }
+        if (cached.holders == 0) {
+            return cached
+        }
+        entries.remove(cached.key)
+        return obtain()
+    }
+
+    /**
+     * Returns an entry of a free cell, or evicts the least recently used entry not held. Returns null if all cells
+     * are held.
+     */
+    private fun obtain(): Entry? {
+        val bitmap = bitmap ?: return null
+        freeCells.removeFirstOrNull()?.let {
+            return Entry(it, bitmap)
+        }
+        val iterator = entries.values.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.holders == 0) {
+                iterator.remove()
+                return entry
+            }
+        }
+        return null
+    }
+
+    private fun rasterize(entry: Entry, drawable: Drawable) {
+        if (!beginCell(entry)) {
+            return
+        }
+        val bounds = drawable.copyBounds()
+        drawable.bounds = entry.src
+        drawable.draw(canvas)
+        drawable.bounds = bounds
+        canvas.setBitmap(null)
+    }
+
+    /**
+     * Clears the cell of [entry] and sets [canvas] to draw into the atlas.
+     */
+    private fun beginCell(entry: Entry): Boolean {
+        val bitmap = bitmap ?: return false
+        val l = entry.cell % GRID_SIZE * cellSize
+        val t = entry.cell / GRID_SIZE * cellSize
+        entry.src.set(l, t, l + cellSize, t + cellSize)
+        canvas.setBitmap(bitmap)
+        canvas.drawRect(entry.src, clearPaint)
+        return true
+    }
+}
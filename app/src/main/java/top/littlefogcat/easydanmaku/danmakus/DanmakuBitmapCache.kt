@@ -0,0 +1,108 @@
+package top.littlefogcat.easydanmaku.danmakus
+
+import android.graphics.Bitmap
+import android.util.LongSparseArray
+import top.littlefogcat.easydanmaku.Danmakus
+import java.util.ArrayDeque
+
+/**
+ * Bitmaps used to cache the rasterized danmakus.
+ *
+ * Bitmaps are bucketed by size, rounded up to [BUCKET_STEP_WIDTH] x [BUCKET_STEP_HEIGHT], so that a released bitmap
+ * can be reused by a danmaku with a similar size. The bytes of all bitmaps, in use or pooled, never exceed
+ * [Danmakus.Options.cacheMaxBytes]. When the limit is reached, [acquire] returns null and the danmaku should be drawn
+ * directly.
+ *
+ * Should only be used in the ESUS main thread.
+ *
+ * @see Danmakus.Options.cacheEnabled
+ */
+object DanmakuBitmapCache {
+    private const val BUCKET_STEP_WIDTH = 32
+    private const val BUCKET_STEP_HEIGHT = 8
+    private const val MAX_POOL_SIZE_PER_BUCKET = 4
+
+    private val buckets = LongSparseArray<ArrayDeque<Bitmap>>()
+
+    /** Bytes of all bitmaps created and not yet recycled **/
+    var usedBytes = 0L
+        private set
+
+    /** Bytes of bitmaps waiting in the pool **/
+    var pooledBytes = 0L
+        private set
+
+    /**
+     * Returns a cleared bitmap with at least [width] x [height] pixels, or null if memory limit is reached.
+     */
+    fun acquire(width: Int, height: Int): Bitmap? {
+        if (width <= 0 || height <= 0) {
+            return null
+        }
+        val w = roundUp(width, BUCKET_STEP_WIDTH)
+        val h = roundUp(height, BUCKET_STEP_HEIGHT)
+        buckets[keyOf(w, h)]?.pollFirst()?.let {
+            pooledBytes -= it.allocationByteCount
+            it.eraseColor(0)
+            return it
+        }
+        val bytes = w.toLong() * h * 4
+        if (usedBytes + bytes > Danmakus.Options.cacheMaxBytes) {
+            trim(usedBytes + bytes - Danmakus.Options.cacheMaxBytes)
+            if (usedBytes + bytes > Danmakus.Options.cacheMaxBytes) {
+                return null
+            }
+        }
+        usedBytes += bytes
+        return Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888)
+    }
+
+    /**
+     * Gives back a bitmap acquired from this cache.
+     */
+    fun release(bitmap: Bitmap) {
+        if (bitmap.isRecycled) {
+            return
+        }
+        val key = keyOf(bitmap.width, bitmap.height)
+        val pool = buckets[key] ?: ArrayDeque<Bitmap>(MAX_POOL_SIZE_PER_BUCKET).also { buckets.put(key, it) }
+        if (pool.size < MAX_POOL_SIZE_PER_BUCKET) {
+            pool.addFirst(bitmap)
+            pooledBytes += bitmap.allocationByteCount
+        } else {
+            recycle(bitmap)
+        }
+    }
+
+    /**
+     * Recycles all pooled bitmaps. Bitmaps in use are not affected.
+     */
+    fun clear() {
+        trim(Long.MAX_VALUE)
+    }
+
+    /**
+     * Recycles pooled bitmaps until at least [bytes] are freed or the pool is empty.
+     */
+    private fun trim(bytes: Long) {
+        var freed = 0L
+        for (i in 0 until buckets.size()) {
+            val pool = buckets.valueAt(i)
+            while (freed < bytes) {
+                val bitmap = pool.pollLast() ?: break
+                freed += bitmap.allocationByteCount
+                pooledBytes -= bitmap.allocationByteCount
+                recycle(bitmap)
+            }
+        }
+    }
+
+    private fun recycle(bitmap: Bitmap) {
+        usedBytes -= bitmap.allocationByteCount
+        bitmap.recycle()
+    }
+
+    private fun roundUp(value: Int, step: Int) = (value + step - 1) / step * step
+
+    private fun keyOf(width: Int, height: Int) = width.toLong() shl 32 or height.toLong()
+}
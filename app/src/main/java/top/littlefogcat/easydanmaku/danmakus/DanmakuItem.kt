@@ -14,6 +14,9 @@ import top.littlefogcat.easydanmaku.Danmakus
  *
  * 最终字体大小为以上3个参数相乘。
  *
+ * @param avatarKey Identifies [avatar], e.g. the package name of an app icon. Avatars with a key are drawn through
+ * [DanmakuAvatarAtlas].
+ *
  * @author littlefogcat
  * @email littlefogcat@foxmail.com
  */
@@ -26,7 +29,27 @@ class DanmakuItem(
     var id: String = "",
     var textScale: Float = 1f,
     var avatar: Drawable? = null,
+    var avatarKey: String? = null,
 ) {
+    /** Time after which this danmaku is dropped if it's still waiting for admission **/
+    internal var deadline = Long.MAX_VALUE
+
+    /** Whether this danmaku has been handed to the lookahead stage **/
+    internal var lookaheadScheduled = false
+
+    /** Whether the lookahead worker should rasterize [avatar], i.e. it's not in the atlas when scheduled **/
+    internal var prepareAvatar = false
+
+    /** Measurements done ahead of time by the lookahead worker, null if not done yet **/
+    @Volatile
+    internal var prepared: DanmakuPrepared? = null
+
+    /**
+     * Whether this danmaku is installed or dropped, so that results the lookahead worker finishes later are
+     * recycled instead of attached. Guarded by the lock of the lookahead.
+     */
+    internal var lookaheadConsumed = false
+
     override fun toString(): String {
         return "$text/$time/$type"
     }
@@ -3,41 +3,65 @@ package top.littlefogcat.easydanmaku.danmakus
 import androidx.core.util.Pools
 import top.littlefogcat.easydanmaku.Danmakus
 import top.littlefogcat.easydanmaku.danmakus.views.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 /**
- * Todo: (重要) 将这个类修改为非单例的。因为可能创建多个ViewRootImpl实例。
- * TODO: ↑ 是否有必要？
+ * Pools of recycled danmakus, one for each [Danmaku.type].
+ *
+ * Each DanmakuContainer owns its pools, since there may be several ViewRootImpls. The max size of each pool is
+ * taken from [Danmakus.Options.poolSizes] when created. Use [prewarm] to fill a pool in background before danmakus
+ * arrive.
+ *
+ * Acquire hits, misses and rejected releases are counted in each pool, see [toString].
  */
-object DanmakuPools {
-    val size: Int
-        get() = pools.values.sumOf { it.size }
+class DanmakuPools(sizes: IntArray = Danmakus.Options.poolSizes) {
+    companion object {
+        private const val KEEP_ALIVE_SECONDS = 10L
+
+        /** Fills the pools of all containers one at a time, the thread exits when idle **/
+        private val prewarmExecutor = ThreadPoolExecutor(
+            1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, LinkedBlockingQueue(),
+            ThreadFactory { Thread(it, "DanmakuPools:prewarm") }
+        ).apply { allowCoreThreadTimeOut(true) }
 
-    private val pools = mutableMapOf<Int, DanmakuPool<out Danmaku>>().apply {
-        put(Danmaku.TYPE_RL, RLPool)
-        put(Danmaku.TYPE_LR, LRPool)
-        put(Danmaku.TYPE_TOP, TopPool)
-        put(Danmaku.TYPE_BOTTOM, BottomPool)
+        /** Count of pools whose containers draw with the shared caches, only used in the ESUS main thread **/
+        private var cacheUsers = 0
     }
 
-    private object RLPool : DanmakuPool<RLDanmaku>(Danmaku.MAX_POOL_SIZE_LARGE) {
+    private var usingCaches = false
+
+    val size: Int
+        get() = pools.sumOf { it.size }
+
+    private val pools = arrayOf<DanmakuPool<out Danmaku>>(
+        RLPool(sizes[Danmaku.TYPE_RL]),
+        LRPool(sizes[Danmaku.TYPE_LR]),
+        TopPool(sizes[Danmaku.TYPE_TOP]),
+        BottomPool(sizes[Danmaku.TYPE_BOTTOM]),
+    )
+
+    private class RLPool(maxPoolSize: Int) : DanmakuPool<RLDanmaku>(maxPoolSize) {
         override fun create(): RLDanmaku {
             return RLDanmaku()
         }
     }
 
-    private object LRPool : DanmakuPool<LRDanmaku>(Danmaku.MAX_POOL_SIZE_LARGE) {
+    private class LRPool(maxPoolSize: Int) : DanmakuPool<LRDanmaku>(maxPoolSize) {
         override fun create(): LRDanmaku {
             return LRDanmaku()
         }
     }
 
-    private object TopPool : DanmakuPool<TopPinnedDanmaku>(Danmaku.MAX_POOL_SIZE_LARGE) {
+    private class TopPool(maxPoolSize: Int) : DanmakuPool<TopPinnedDanmaku>(maxPoolSize) {
         override fun create(): TopPinnedDanmaku {
             return TopPinnedDanmaku()
         }
     }
 
-    private object BottomPool : DanmakuPool<BottomPinnedDanmaku>(Danmaku.MAX_POOL_SIZE_LARGE) {
+    private class BottomPool(maxPoolSize: Int) : DanmakuPool<BottomPinnedDanmaku>(maxPoolSize) {
         override fun create(): BottomPinnedDanmaku {
             return BottomPinnedDanmaku()
         }
@@ -48,45 +72,137 @@ object DanmakuPools {
         return pools[type] as DanmakuPool<Danmaku>
     }
 
+    /**
+     * Creates [count] danmakus of [type] in a background thread and puts them into the pool, no more than its
+     * max size.
+     */
+    fun prewarm(type: Int, count: Int) {
+        val pool = ofType(type)
+        prewarmExecutor.execute { pool.fill(count) }
+    }
+
+    /**
+     * Marks [DanmakuBitmapCache] and [DanmakuAvatarAtlas], shared by all containers, as used by the container of
+     * these pools until [clear]. Should be called in the ESUS main thread.
+     */
+    fun useSharedCaches() {
+        if (!usingCaches) {
+            usingCaches = true
+            cacheUsers++
+        }
+    }
+
+    /**
+     * Drops the pooled danmakus. The shared caches are dropped as well if no other container uses them. Should be
+     * called in the ESUS main thread, since the caches are used there.
+     */
     fun clear() {
-        pools.values.forEach {
+        pools.forEach {
             it.clear()
         }
+        if (usingCaches) {
+            usingCaches = false
+            if (--cacheUsers == 0) {
+                DanmakuBitmapCache.clear()
+                DanmakuAvatarAtlas.clear()
+            }
+        }
+    }
+
+    override fun toString(): String {
+        return "RL${pools[Danmaku.TYPE_RL]}, LR${pools[Danmaku.TYPE_LR]}, " +
+                "Top${pools[Danmaku.TYPE_TOP]}, Bottom${pools[Danmaku.TYPE_BOTTOM]}"
     }
 
+    /**
+     * A pool of danmakus. It's filled by [fill] in a background thread, so the operations are synchronized.
+     */
     abstract class DanmakuPool<T : Danmaku> internal constructor(private val maxPoolSize: Int) : Pools.Pool<T> {
         private var head: T? = null
         internal var size = 0
 
+        /** Count of acquires served by a pooled danmaku **/
+        var hits = 0L
+            private set
+
+        /** Count of acquires that created a new danmaku **/
+        var misses = 0L
+            private set
+
+        /** Count of releases dropped since the pool is full **/
+        var rejected = 0L
+            private set
+
+        @Synchronized
         @Suppress("UNCHECKED_CAST")
         override fun acquire(): T {
             if (!Danmakus.Options.recycle) {
                 return create()
             }
-            val h = head ?: return create()
+            val h = head
+            if (h == null) {
+                misses++
+                return create()
+            }
             head = h.next as T?
+            h.next = null
             size--
+            hits++
             return h
         }
 
+        @Synchronized
         override fun release(instance: T): Boolean {
             if (!Danmakus.Options.recycle) {
                 return false
             }
             if (size >= maxPoolSize) {
+                rejected++
                 return false
             }
+            push(instance)
+            return true
+        }
+
+        /**
+         * Creates danmakus until there are [count] in the pool or it's full. Not counted as releases.
+         */
+        fun fill(count: Int) {
+            val target = minOf(count, maxPoolSize)
+            while (true) {
+                synchronized(this) {
+                    if (size >= target) {
+                        return
+                    }
+                }
+                // Create outside of the lock, so that acquire is not blocked
+                val instance = create()
+                synchronized(this) {
+                    if (size >= target) {
+                        return
+                    }
+                    push(instance)
+                }
+            }
+        }
+
+        private fun push(instance: T) {
             instance.next = head
             head = instance
             size++
-            return true
         }
 
+        @Synchronized
         fun clear() {
             head = null
             size = 0
         }
 
         abstract fun create(): T
+
+        @Synchronized
+        override fun toString(): String {
+            return "(size=$size/$maxPoolSize, hits=$hits, misses=$misses, rejected=$rejected)"
+        }
     }
 }
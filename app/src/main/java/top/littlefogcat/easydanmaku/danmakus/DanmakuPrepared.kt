@@ -0,0 +1,20 @@
+package top.littlefogcat.easydanmaku.danmakus
+
+import android.graphics.Bitmap
+import android.graphics.Typeface
+import top.littlefogcat.esus.widget.TextMeasureCache
+
+/**
+ * Results of measuring a danmaku ahead of time, attached to [DanmakuItem.prepared] by the lookahead worker. Never
+ * modified after created.
+ */
+class DanmakuPrepared internal constructor(
+    val textSize: Float,
+    val typeface: Typeface?,
+    val metrics: TextMeasureCache.Entry,
+    /**
+     * Avatar rasterized at the cell size of [DanmakuAvatarAtlas], null if there's no avatar, it's already in the
+     * atlas, or it can't be copied. Owned by the lookahead, which reuses it once copied into the atlas.
+     */
+    val avatar: Bitmap?,
+)
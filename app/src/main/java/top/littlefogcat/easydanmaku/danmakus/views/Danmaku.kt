@@ -1,14 +1,19 @@
 package top.littlefogcat.easydanmaku.danmakus.views
 
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
+import android.graphics.Paint
 import android.graphics.drawable.Drawable
 import android.text.TextPaint
 import top.littlefogcat.easydanmaku.Danmakus
+import top.littlefogcat.easydanmaku.danmakus.DanmakuAvatarAtlas
+import top.littlefogcat.easydanmaku.danmakus.DanmakuBitmapCache
 import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
 import top.littlefogcat.esus.view.ViewGroup
 import top.littlefogcat.esus.view.ViewParent
 import top.littlefogcat.esus.widget.TextView
+import kotlin.math.ceil
 
 /**
  * 定义弹幕实体应该实现的功能。
@@ -29,6 +34,10 @@ open class Danmaku(item: DanmakuItem? = null) : TextView() {
         const val TYPE_BOTTOM = 3
 
         const val MAX_POOL_SIZE_LARGE = 20
+
+        /** Shared by all danmakus to draw cache, only used in ESUS main thread **/
+        private val cachePaint = Paint(Paint.FILTER_BITMAP_FLAG)
+        private val cacheCanvas = Canvas()
     }
 
     /* ===================== danmaku properties ===================== */
@@ -39,6 +48,7 @@ open class Danmaku(item: DanmakuItem? = null) : TextView() {
                 text = value.text
                 textColor = value.color
                 textSize = Danmakus.Globals.baseTextSize * Danmakus.Options.textScale * value.textScale
+                time = value.time
             }
             field = value
         }
@@ -49,11 +59,14 @@ open class Danmaku(item: DanmakuItem? = null) : TextView() {
             item?.avatar = value
         }
 
-    var time: Long
-        get() = item?.time ?: 0
-        set(value) {
-            item?.time = value
-        }
+    val avatarKey: String?
+        get() = item?.avatarKey
+
+    /**
+     * Start time of the animation, copied from [item] when it's set. The container moves it to the frame admitting
+     * this danmaku if [item] is due before that, so [DanmakuItem.time] is never changed by the view.
+     */
+    var time: Long = item?.time ?: 0
     var type: Int
         get() = item?.type ?: 0
         set(value) {
@@ -85,23 +98,53 @@ open class Danmaku(item: DanmakuItem? = null) : TextView() {
      */
     override val paint: TextPaint = Danmakus.Globals.paint
 
+    /**
+     * Recorded once on the first frame after admission, and replayed at a new translation on following frames.
+     */
+    override val useRenderNode = true
+
     /** use for danmaku pool **/
     var next: Danmaku? = null
         @JvmName("setNext") internal set
+
+    /** use for lane allocation, released by the locator after detached **/
+    internal var lane = -1
+    internal var laneSpan = 0
     var isPaused = false
     var lastDrawingTime = -1L
 
+    /**
+     * Total time this danmaku has been paused while shown, excluded from the animation.
+     */
+    var pausedDuration = 0L
+
     /**
      * Indicates whether more transform should be done.
      * If not, this danmaku will be removed from parent.
      */
     private var more = false
 
+    /** Whether this danmaku has been handed to the parent to be removed **/
+    private var removePosted = false
+
     /**
      * Float value between 0~1, indicates the process of the animation of this danmaku.
+     * It's computed from the current time, see [processAt].
      */
     var process = 0f
 
+    /**
+     * Rasterized danmaku, including stroke and drawable.
+     *
+     * @see Danmakus.Options.cacheEnabled
+     */
+    private var cache: Bitmap? = null
+    private var cachePadding = 0
+    private var cacheFailed = false
+
+    /** Cell of the atlas the avatar is drawn from, held while this danmaku is shown **/
+    private var avatarEntry: DanmakuAvatarAtlas.Entry? = null
+
     /* ===================== functions ===================== */
 
     init {
@@ -116,27 +159,78 @@ open class Danmaku(item: DanmakuItem? = null) : TextView() {
     }
 
     /**
-     * 在`preDraw`中做变换
+     * 在`onUpdate`中做变换
      */
-    override fun preDraw(canvas: Canvas, parent: ViewParent?, time: Long) {
-        if (lastDrawingTime != -1L && !isPaused) {
-            val diff = time - lastDrawingTime
-            process += diff.toFloat() / duration
+    override fun onUpdate(time: Long) {
+        more = advance(time)
+        val parent = parent
+        if (!more && !removePosted && parent is ViewGroup) {
+            removePosted = true
+            // Removed together with others at the end of this frame's update
+            parent.removeViewLater(this)
         }
-        lastDrawingTime = time
-        more = updateOnProcess(process)
     }
 
     override fun onDraw(canvas: Canvas, parent: ViewParent?, time: Long) {
-        super.onDraw(canvas, parent, time)
-        if (!more && parent is ViewGroup) {
-            post {
-                parent.removeView(this)
-            }
+        val cache = if (Danmakus.Options.cacheEnabled) cache ?: buildCache() else null
+        if (cache != null) {
+            cachePaint.alpha = alpha
+            canvas.drawBitmap(cache, -cachePadding.toFloat(), -cachePadding.toFloat(), cachePaint)
+        } else {
+            super.onDraw(canvas, parent, time)
         }
     }
 
+    override fun drawDrawableLeft(canvas: Canvas, drawable: Drawable, left: Int, top: Int, size: Int) {
+        val key = avatarKey
+        val entry = if (key != null && drawable === avatar) {
+            DanmakuAvatarAtlas.draw(canvas, key, drawable, left, top, size)
+        } else {
+            null
+        }
+        if (entry == null) {
+            super.drawDrawableLeft(canvas, drawable, left, top, size)
+        } else if (entry !== avatarEntry) {
+            // The recorded drawing refers to the cell, keep it until detached
+            avatarEntry?.let { DanmakuAvatarAtlas.release(it) }
+            DanmakuAvatarAtlas.hold(entry)
+            avatarEntry = entry
+        }
+    }
+
+    private fun buildCache(): Bitmap? {
+        if (cacheFailed || metrics == null) {
+            return null
+        }
+        val padding = stroke?.width?.let { ceil(it).toInt() } ?: 0
+        val bitmap = DanmakuBitmapCache.acquire(width + padding * 2, height + padding * 2)
+        if (bitmap == null) {
+            cacheFailed = true
+            return null
+        }
+        cacheCanvas.setBitmap(bitmap)
+        cacheCanvas.save()
+        cacheCanvas.translate(padding.toFloat(), padding.toFloat())
+        drawContent(cacheCanvas, 255)
+        cacheCanvas.restore()
+        cacheCanvas.setBitmap(null)
+        cachePadding = padding
+        cache = bitmap
+        return bitmap
+    }
+
+    private fun releaseCache() {
+        cache?.let { DanmakuBitmapCache.release(it) }
+        cache = null
+        cachePadding = 0
+        cacheFailed = false
+    }
+
     override fun onDetached() {
+        releaseCache()
+        discardDisplayList()
+        avatarEntry?.let { DanmakuAvatarAtlas.release(it) }
+        avatarEntry = null
         if (Danmakus.Options.recycle) {
             // should recycle
             reset()
@@ -147,9 +241,11 @@ open class Danmaku(item: DanmakuItem? = null) : TextView() {
     private fun reset() {
         process = 0f
         more = false
+        removePosted = false
         next = null
         isPaused = false
         lastDrawingTime = -1
+        pausedDuration = 0
         flags = 0
         needLayout = true
         parent = null
@@ -160,6 +256,29 @@ open class Danmaku(item: DanmakuItem? = null) : TextView() {
         drawableLeft = null
     }
 
+    /**
+     * Advances the animation to [time].
+     *
+     * @return if it's still running.
+     */
+    protected open fun advance(time: Long): Boolean {
+        if (lastDrawingTime != -1L && isPaused) {
+            pausedDuration += time - lastDrawingTime
+        }
+        lastDrawingTime = time
+        process = processAt(time)
+        return updateOnProcess(process)
+    }
+
+    /**
+     * Returns the process at [time] in closed form, so that it doesn't depend on how many frames were drawn. Frames
+     * can be skipped without the danmaku drifting or changing speed.
+     */
+    fun processAt(time: Long): Float {
+        val elapsed = time - this.time - pausedDuration
+        return if (elapsed <= 0) 0f else elapsed.toFloat() / duration
+    }
+
     /**
      * @return if it's still running. When not, the danmaku may be recycled.
      */
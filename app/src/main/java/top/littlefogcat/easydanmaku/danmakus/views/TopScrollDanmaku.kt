@@ -15,6 +15,16 @@ abstract class TopScrollDanmaku(item: DanmakuItem? = null) : Danmaku(item) {
     override val duration: Int
         get() = Danmakus.Options.scrollingDanmakuDuration
 
+    /**
+     * -1 for scrolling from right to left, 1 for left to right.
+     */
+    abstract val direction: Int
+
+    /**
+     * Row in the motion table of the container, or -1 if this danmaku is moved by itself.
+     */
+    internal var motionRow = -1
+
     /**
      * The moment the whole danmaku is displayed.
      */
@@ -26,4 +36,21 @@ abstract class TopScrollDanmaku(item: DanmakuItem? = null) : Danmaku(item) {
             it as ViewGroup
             (time + duration * (it.width.toFloat() / (it.width + measuredWidth))).toInt()
         } ?: -1
+
+    override fun advance(time: Long): Boolean {
+        if (motionRow >= 0) {
+            // Already advanced by the container in this frame
+            return process < 1f
+        }
+        return super.advance(time)
+    }
+
+    override fun updateOnProcess(process: Float): Boolean {
+        val parent = parent
+        if (parent !is ViewGroup) {
+            return false
+        }
+        translationX = direction * (parent.width + width) * process
+        return process < 1f
+    }
 }
@@ -0,0 +1,183 @@
+package top.littlefogcat.easydanmaku.ui
+
+import android.os.Trace
+import top.littlefogcat.easydanmaku.Danmakus
+import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
+
+/**
+ * Admission stage of a [DanmakuContainer], deciding which retrieved danmakus get a view.
+ *
+ * Retrieved danmakus wait in a bounded queue ordered by [DanmakuItem.priority], and then by how long they have
+ * waited. On each frame, at most [Danmakus.Options.admissionPerFrame] danmakus are admitted from the head, within
+ * [Danmakus.Options.admissionBudgetMicros]. Danmakus of a type having no room are skipped and keep their place, and
+ * danmakus that still can't be located are deferred back to the queue. A danmaku is dropped when it has waited longer
+ * than [Danmakus.Options.admissionMaxWait], or when the queue is full of more important ones.
+ *
+ * The cost of admission in each frame is recorded by [recordFrame], and also written to the system trace as counters.
+ *
+ * Should only be used in the ESUS main thread.
+ */
+internal class DanmakuAdmission(
+    /** Called with each dropped danmaku, e.g. to release what was prepared for it **/
+    private val onDropped: (DanmakuItem) -> Unit = {},
+) {
+    companion object {
+        private const val TRACE_ADMITTED = "Danmaku:admitted"
+        private const val TRACE_COST = "Danmaku:admitCostUs"
+        private const val TRACE_WAITING = "Danmaku:waiting"
+    }
+
+    /** Sorted by priority descending, then deadline ascending, so the head is the most important one **/
+    private val queue = ArrayList<DanmakuItem>()
+
+    /** Count of danmakus given a view and located **/
+    @Volatile
+    var admitted = 0L
+        private set
+
+    /** Count of danmakus put back to the queue since they can't be located **/
+    @Volatile
+    var deferred = 0L
+        private set
+
+    /** Count of danmakus dropped by deadline or queue limit **/
+    @Volatile
+    var dropped = 0L
+        private set
+
+    /** Time in nanos spent admitting danmakus in last frame admitting any **/
+    @Volatile
+    var lastCostNanos = 0L
+        private set
+
+    /** Max time in nanos spent admitting danmakus in one frame **/
+    @Volatile
+    var maxCostNanos = 0L
+        private set
+
+    val size: Int get() = queue.size
+
+    fun isEmpty() = queue.isEmpty()
+
+    /**
+     * Puts a newly retrieved [item] into the queue at [time].
+     */
+    fun offer(item: DanmakuItem, time: Long) {
+        item.deadline = time + Danmakus.Options.admissionMaxWait
+        enqueue(item)
+    }
+
+    /**
+     * Puts an admitted [item] back since there's no room for it now. It keeps its deadline.
+     */
+    fun defer(item: DanmakuItem, time: Long) {
+        if (time >= item.deadline) {
+            drop(item)
+            return
+        }
+        deferred++
+        enqueue(item)
+    }
+
+    /**
+     * Drops the danmakus whose deadline has passed.
+     */
+    fun expire(time: Long) {
+        val queue = queue
+        var j = 0
+        for (i in 0 until queue.size) {
+            val item = queue[i]
+            if (time >= item.deadline) {
+                drop(item)
+            } else {
+                queue[j++] = item
+            }
+        }
+        // From the end, so that nothing is moved or allocated
+        for (i in queue.size - 1 downTo j) {
+            queue.removeAt(i)
+        }
+    }
+
+    /**
+     * Returns the waiting danmaku at [index] in order of importance, the most important one at 0, or null if there
+     * are not so many.
+     */
+    fun peek(index: Int): DanmakuItem? {
+        return if (index < queue.size) queue[index] else null
+    }
+
+    /**
+     * Removes the waiting danmaku at [index] to give it a view. Its time is not changed, the view starts it at the
+     * frame admitting it. Call [place] when it's located, or [defer] if it's not.
+     */
+    fun take(index: Int): DanmakuItem {
+        return queue.removeAt(index)
+    }
+
+    /**
+     * Records that a taken danmaku is located.
+     */
+    fun place() {
+        admitted++
+    }
+
+    fun clear() {
+        queue.clear()
+    }
+
+    /**
+     * Records that [count] danmakus are admitted in this frame, spending [costNanos].
+     */
+    fun recordFrame(count: Int, costNanos: Long) {
+        if (count > 0) {
+            lastCostNanos = costNanos
+            if (costNanos > maxCostNanos) {
+                maxCostNanos = costNanos
+            }
+        }
+        if (Trace.isEnabled()) {
+            Trace.setCounter(TRACE_ADMITTED, count.toLong())
+            Trace.setCounter(TRACE_COST, if (count > 0) costNanos / 1000 else 0)
+            Trace.setCounter(TRACE_WAITING, queue.size.toLong())
+        }
+    }
+
+    private fun enqueue(item: DanmakuItem) {
+        val queue = queue
+        if (queue.size >= Danmakus.Options.admissionQueueSize) {
+            val last = queue[queue.size - 1]
+            if (compare(item, last) >= 0) {
+                // Not more important than any waiting one
+                drop(item)
+                return
+            }
+            drop(queue.removeAt(queue.size - 1))
+        }
+        // Upper bound, so that danmakus of the same order keep arriving order
+        var lo = 0
+        var hi = queue.size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (compare(queue[mid], item) <= 0) lo = mid + 1 else hi = mid
+        }
+        queue.add(lo, item)
+    }
+
+    private fun drop(item: DanmakuItem) {
+        dropped++
+        onDropped(item)
+    }
+
+    private fun compare(a: DanmakuItem, b: DanmakuItem): Int {
+        if (a.priority != b.priority) {
+            return if (a.priority > b.priority) -1 else 1
+        }
+        return a.deadline.compareTo(b.deadline)
+    }
+
+    override fun toString(): String {
+        return "(waiting=${queue.size}, admitted=$admitted, deferred=$deferred, dropped=$dropped, " +
+                "lastCostUs=${lastCostNanos / 1000}, maxCostUs=${maxCostNanos / 1000})"
+    }
+}
@@ -1,14 +1,14 @@
 package top.littlefogcat.easydanmaku.ui
 
-import android.graphics.Canvas
-import android.graphics.Color
-import android.graphics.PorterDuff
+import android.os.Trace
+import top.littlefogcat.easydanmaku.Danmakus
 import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
 import top.littlefogcat.easydanmaku.danmakus.DanmakuPools
 import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+import top.littlefogcat.easydanmaku.danmakus.views.TopScrollDanmaku
+import top.littlefogcat.esus.view.TouchEvent
 import top.littlefogcat.esus.view.View
 import top.littlefogcat.esus.view.ViewGroup
-import top.littlefogcat.esus.view.ViewParent
 
 /**
  * @author littlefogcat
@@ -17,13 +17,67 @@ import top.littlefogcat.esus.view.ViewParent
 class DanmakuContainer : ViewGroup() {
     private val resolver: DanmakuResolver = DanmakuResolverImpl()
     private val locator: DanmakuLocator<Danmaku> = DanmakuLocatorImpl()
+    private val motions = MotionTable()
+
+    /** Recycled danmakus of this container **/
+    val pools = DanmakuPools()
 
     private var onDanmakuClickListener: ((Danmaku) -> Boolean)? = null
 
-    private var discarded = 0
+    /** Shared by all danmakus, so that no listener is created for each danmaku added **/
+    private val danmakuClickListener = object : OnClickListener {
+        override fun onClick(view: View) {
+            onDanmakuClickListener?.invoke(view as Danmaku)
+        }
+    }
+
+    private val hitIndex = DanmakuHitIndex()
+
+    /** The danmaku receiving the touch events since last ACTION_DOWN **/
+    private var touchTarget: Danmaku? = null
+
+    /** Reused for the danmakus retrieved in each frame **/
+    private val retrieved = ArrayList<DanmakuItem>()
+
+    private val lookahead = DanmakuLookahead()
+
+    /** Queue of the danmakus waiting for a view, see [admissionStats] **/
+    internal val admission = DanmakuAdmission { lookahead.release(it) }
+
+    private var lastUpdateTime = 0L
+    private var lastTextScale = Danmakus.Options.textScale
+    private var lastBaseTextSize = Danmakus.Globals.baseTextSize
+    private var lastScrollDuration = Danmakus.Options.scrollingDanmakuDuration
+    private var lastDisplayArea = Danmakus.Options.displayArea
+
+    /** Size in last layout, -1 if not laid out yet **/
+    private var lastWidth = -1
+    private var lastHeight = -1
+
+    /** Whether the located danmakus should be relocated in next update, set once for any number of changes **/
+    private var reprojectPending = false
+
+    /** Max count of danmaku views alive at the same time **/
+    @Volatile
+    var peakChildCount = 0
+        private set
+
+    /** Admitted, deferred and dropped counts of the admission stage **/
+    val admissionStats: String
+        get() = admission.toString()
+
+    /** Prepared, hit and missed counts of the lookahead stage **/
+    val lookaheadStats: String
+        get() = lookahead.toString()
 
     fun setDanmakus(danmakus: Collection<DanmakuItem>) {
         resolver.setData(danmakus)
+        attachInfo?.viewRootImpl?.wake()
+    }
+
+    fun offerDanmaku(danmaku: DanmakuItem) {
+        resolver.offer(danmaku)
+        attachInfo?.viewRootImpl?.wake()
     }
 
     fun addDanmaku(danmaku: Danmaku) {
@@ -32,41 +86,49 @@ class DanmakuContainer : ViewGroup() {
 
     fun setOnDanmakuClickListener(l: (Danmaku) -> Boolean) {
         onDanmakuClickListener = l
+        touchable = true
     }
 
     /* ===================== Override functions ===================== */
 
     override fun onViewAdded(view: View) {
         if (onDanmakuClickListener != null) {
-            view.setOnClickListener(object : OnClickListener {
-                override fun onClick(view: View) {
-                    onDanmakuClickListener?.invoke(view as Danmaku)
-                }
-            })
+            view.setOnClickListener(danmakuClickListener)
         }
     }
 
     override fun onViewRemoved(view: View) {
         view.removeOnClickListener()
+        if (view is TopScrollDanmaku) {
+            motions.remove(view)
+        }
         if (view is Danmaku) {
+            hitIndex.remove(view)
+            if (view === touchTarget) {
+                touchTarget = null
+            }
             locator.release(view)
-            DanmakuPools.ofType(view.type).release(view)
+            pools.ofType(view.type).release(view)
         }
     }
 
     override fun onLayout(l: Int, t: Int, r: Int, b: Int) {
+        val w = r - l
+        val h = b - t
+        motions.setContainerWidth(w)
+        if (lastWidth >= 0 && (w != lastWidth || h != lastHeight)) {
+            // Resized, e.g. rotated. Done in update, together with the option changes coming with it
+            reprojectPending = true
+        }
+        lastWidth = w
+        lastHeight = h
         if (needLayout || attachInfo?.forceLayout == true) {
+            // Removed children only leave holes, so it's safe to remove while iterating
+            val time = getSurface()?.time ?: lastUpdateTime
             allChildren { child ->
                 if (child is Danmaku) {
                     if (child.needLayout) {
-                        val success = locator.locate(this, child)
-                        if (!success) {
-                            child.needLayout = false
-                            removeView(child)
-                            discarded++
-                        } else {
-                            child.setVisibility(VISIBLE)
-                        }
+                        locateChild(child, time)
                     }
                 } else {
                     child.layout(0, 0, child.measuredWidth, child.measuredHeight)
@@ -75,20 +137,199 @@ class DanmakuContainer : ViewGroup() {
         }
     }
 
-    override fun onDraw(canvas: Canvas, parent: ViewParent?, time: Long) {
-        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR)
+    /**
+     * Locates a measured [child] and shows it, or removes it and defers its item if there's no room for it now.
+     */
+    private fun locateChild(child: Danmaku, time: Long): Boolean {
+        if (!locator.locate(this, child)) {
+            child.needLayout = false
+            val item = child.item
+            removeView(child)
+            // No room now, try again later
+            item?.let { admission.defer(it, time) }
+            return false
+        }
+        if (child.item != null) {
+            admission.place()
+        }
+        hitIndex.add(child)
+        child.setVisibility(VISIBLE)
+        if (child is TopScrollDanmaku) {
+            motions.add(child)
+        }
+        return true
+    }
+
+    override fun onAttached(info: AttachInfo) {
+        pools.useSharedCaches()
+    }
+
+    /**
+     * Called in the ESUS main thread when the render loop dies, after the children are detached. Frees the lanes
+     * they held, and drops the pooled danmakus. The shared bitmap caches are dropped with the last container, since
+     * they would otherwise be kept until the process dies.
+     */
+    override fun onDetached() {
+        allChildren { child ->
+            if (child is Danmaku) {
+                locator.release(child)
+            }
+        }
+        motions.clear()
+        hitIndex.clear()
+        touchTarget = null
+        pools.clear()
+    }
+
+    /**
+     * Hit-tests only the danmakus in the band of the touch point, instead of all children.
+     */
+    override fun dispatchTouchEvent(e: TouchEvent): Boolean {
+        val ex = e.x
+        val ey = e.y
+        if (e.actionType == TouchEvent.ACTION_DOWN) {
+            touchTarget = null
+            val band = hitIndex.bandAt(ey) ?: return false
+            for (i in band.size - 1 downTo 0) {
+                val child = band[i]
+                if (child.isVisible && ex >= child.x && ey >= child.y &&
+                    ex <= child.x + child.width && ey <= child.y + child.height &&
+                    dispatchTouchEventTo(child, e, ex, ey)
+                ) {
+                    touchTarget = child
+                    return true
+                }
+            }
+            return false
+        }
+        val target = touchTarget ?: return false
+        if (e.actionType == TouchEvent.ACTION_UP || e.actionType == TouchEvent.ACTION_CANCEL) {
+            touchTarget = null
+        }
+        return dispatchTouchEventTo(target, e, ex, ey)
+    }
+
+    /**
+     * Lays out the located danmakus again after the size or options changed, instead of dropping them. Scrolling
+     * danmakus keep their process, and danmakus whose lanes are gone are removed.
+     */
+    private fun reproject() {
+        locator.resize(this)
+        allChildren { child ->
+            if (child is Danmaku && !child.needLayout) {
+                hitIndex.remove(child)
+                if (locator.relocate(this, child)) {
+                    hitIndex.add(child)
+                } else {
+                    removeView(child)
+                }
+            }
+        }
+    }
+
+    private fun dispatchTouchEventTo(child: Danmaku, e: TouchEvent, ex: Float, ey: Float): Boolean {
+        e.x = ex - child.x
+        e.y = ey - child.y
+        val handled = child.dispatchTouchEvent(e)
+        e.x = ex
+        e.y = ey
+        return handled
+    }
+
+    /**
+     * Idle when no danmaku is shown or waiting to be shown.
+     */
+    override fun isIdle(): Boolean {
+        return childCount == 0 && admission.isEmpty() && resolver.isEmpty()
     }
 
-    override fun afterDraw(canvas: Canvas, parent: ViewParent?, time: Long) {
-        val newDanmakus = resolver.retrieve(time)
-        // TODO: 把Locate的步骤放在这里做，放不下的不要添加
-        newDanmakus.forEach {
+    /**
+     * Admits new danmakus in update pass, so that they are admitted even if the frame is not drawn.
+     * The most important ones are admitted first, no more than [Danmakus.Options.admissionPerFrame] or
+     * [Danmakus.Options.admissionBudgetMicros] per frame. The rest are carried over to following frames, so that a
+     * burst doesn't make one long frame. Danmakus of a type having no room keep waiting without taking a view.
+     * Admitted danmakus are measured and located right away, so that the budget and [admissionStats] cover their
+     * whole cost, and the next layout pass has nothing left to locate.
+     */
+    override fun onUpdate(time: Long) {
+        lastUpdateTime = time
+        if (lastTextScale != Danmakus.Options.textScale || lastBaseTextSize != Danmakus.Globals.baseTextSize) {
+            // Measurements of old text sizes won't be used again
+            attachInfo?.textMeasureCache?.clear()
+            lastTextScale = Danmakus.Options.textScale
+            lastBaseTextSize = Danmakus.Globals.baseTextSize
+        }
+        val scrollDuration = Danmakus.Options.scrollingDanmakuDuration
+        val displayArea = Danmakus.Options.displayArea
+        if (scrollDuration != lastScrollDuration || displayArea != lastDisplayArea) {
+            motions.setDuration(scrollDuration, time)
+            lastScrollDuration = scrollDuration
+            lastDisplayArea = displayArea
+            reprojectPending = true
+        }
+        if (reprojectPending) {
+            reprojectPending = false
+            reproject()
+        }
+        val retrieved = retrieved
+        resolver.retrieve(time, retrieved)
+        for (i in 0 until retrieved.size) {
+            admission.offer(retrieved[i], time)
+        }
+        retrieved.clear()
+        admission.expire(time)
+        if (Danmakus.Options.lookaheadMillis > 0) {
+            resolver.retrieve(time, time + Danmakus.Options.lookaheadMillis, retrieved)
+            lookahead.schedule(retrieved)
+            retrieved.clear()
+        }
+        val start = System.nanoTime()
+        val budgetNanos = Danmakus.Options.admissionBudgetMicros * 1000L
+        var count = 0
+        // Types found no room for in this frame, their danmakus keep waiting without taking a view
+        var blockedTypes = 0
+        var index = 0
+        Trace.beginSection("Danmaku#admit")
+        while (count < Danmakus.Options.admissionPerFrame) {
+            if (count > 0 && System.nanoTime() - start >= budgetNanos) {
+                break
+            }
+            val item = admission.peek(index) ?: break
+            val typeBit = 1 shl item.type
+            if (blockedTypes and typeBit != 0) {
+                index++
+                continue
+            }
+            if (!locator.hasRoom(this, item.type, time)) {
+                blockedTypes = blockedTypes or typeBit
+                index++
+                continue
+            }
+            admission.take(index)
             // 从池中取一个view
-            val pool = DanmakuPools.ofType(it.type)
+            val pool = pools.ofType(item.type)
             val view = pool.acquire()
-            view.setVisibility(GONE)
-            view.item = it
+            view.item = item
+            if (view.time < time) {
+                // Waited in the queue, or offered while the render loop was parked, start from the beginning
+                view.time = time
+            }
+            lookahead.install(item, view.textSize, attachInfo?.textMeasureCache)
             addView(view)
+            // Measured and located here rather than in the next layout pass, so that the budget covers them
+            view.measure(measuredWidth, measuredHeight)
+            if (!locateChild(view, time)) {
+                blockedTypes = blockedTypes or typeBit
+                continue
+            }
+            count++
+        }
+        Trace.endSection()
+        admission.recordFrame(count, System.nanoTime() - start)
+        if (childCount > peakChildCount) {
+            peakChildCount = childCount
         }
+        // Move all scrolling danmakus before they're updated one by one
+        motions.update(time)
     }
 }
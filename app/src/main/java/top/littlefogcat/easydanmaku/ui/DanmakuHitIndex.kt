@@ -0,0 +1,77 @@
+package top.littlefogcat.easydanmaku.ui
+
+import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+
+/**
+ * Spatial index of the laid out danmakus in a [DanmakuContainer], for touch hit-testing.
+ *
+ * The container is split vertically into bands as high as the first danmaku added, which is about the height of a
+ * lane. Each band holds the danmakus overlapping it, in the order they are added, i.e. the drawing order. Since
+ * danmakus only move horizontally, the index is updated only when a danmaku is laid out or removed, and a hit test
+ * only checks the danmakus in one band.
+ *
+ * Should only be used in the ESUS main thread.
+ */
+internal class DanmakuHitIndex {
+    private var bandHeight = 0
+    private val bands = ArrayList<ArrayList<Danmaku>>()
+    private var size = 0
+
+    /**
+     * Adds a laid out [danmaku].
+     */
+    fun add(danmaku: Danmaku) {
+        if (bandHeight == 0) {
+            bandHeight = danmaku.height
+            if (bandHeight <= 0) {
+                return
+            }
+        }
+        val last = lastBand(danmaku)
+        while (bands.size <= last) {
+            bands.add(ArrayList())
+        }
+        for (i in firstBand(danmaku)..last) {
+            bands[i].add(danmaku)
+        }
+        size++
+    }
+
+    /**
+     * Removes [danmaku]. Its layout must be the same as when it's added.
+     */
+    fun remove(danmaku: Danmaku) {
+        if (bandHeight <= 0) {
+            return
+        }
+        var removed = false
+        for (i in firstBand(danmaku)..minOf(lastBand(danmaku), bands.size - 1)) {
+            removed = bands[i].remove(danmaku) or removed
+        }
+        if (removed && --size == 0) {
+            // Danmakus added later may have another height
+            bandHeight = 0
+        }
+    }
+
+    /**
+     * Returns the danmakus that may contain [y], in drawing order, or null if none.
+     */
+    fun bandAt(y: Float): List<Danmaku>? {
+        if (bandHeight <= 0 || y < 0) {
+            return null
+        }
+        val band = (y / bandHeight).toInt()
+        return if (band < bands.size) bands[band] else null
+    }
+
+    fun clear() {
+        bands.forEach { it.clear() }
+        bandHeight = 0
+        size = 0
+    }
+
+    private fun firstBand(danmaku: Danmaku) = maxOf(danmaku.t, 0) / bandHeight
+
+    private fun lastBand(danmaku: Danmaku) = maxOf(danmaku.b - 1, 0) / bandHeight
+}
@@ -2,7 +2,7 @@ package top.littlefogcat.easydanmaku.ui
 
 import top.littlefogcat.easydanmaku.Danmakus
 import top.littlefogcat.easydanmaku.danmakus.views.*
-import top.littlefogcat.easydanmaku.util.IntervalList
+import top.littlefogcat.easydanmaku.util.LaneAllocator
 import top.littlefogcat.esus.view.View
 import top.littlefogcat.esus.view.ViewGroup
 
@@ -39,6 +39,9 @@ object DanmakuLocators {
     private val lrLocator = LRLocator()
     private val topLocator = TopLocator()
     private val bottomLocator = BottomLocator()
+
+    /** All locators, e.g. to resize them before relocating danmakus **/
+    val all = listOf(rlLocator, lrLocator, topLocator, bottomLocator) as List<DanmakuLocator<Danmaku>>
 }
 
 interface DanmakuLocator<D : Danmaku> : ILocator<DanmakuContainer, D> {
@@ -51,6 +54,23 @@ interface DanmakuLocator<D : Danmaku> : ILocator<DanmakuContainer, D> {
         throw UnsupportedOperationException()
     }
 
+    /**
+     * Lays out a located [danmaku] again at its place after the [container] is resized or reconfigured.
+     * Returns false if its place is gone, and it should be removed.
+     */
+    fun relocate(container: DanmakuContainer, danmaku: D): Boolean = false
+
+    /**
+     * Fits the locator to the size and options of the [container], called once before a pass of [relocate].
+     */
+    fun resize(container: DanmakuContainer) {}
+
+    /**
+     * Returns whether a danmaku of [type] starting at [time] may find room, checked before a view is taken for it.
+     * False means it can't be located now.
+     */
+    fun hasRoom(container: DanmakuContainer, type: Int, time: Long): Boolean = true
+
     override fun release(view: D) {}
 }
 
@@ -68,6 +88,31 @@ class DanmakuLocatorImpl<T : Danmaku> : DanmakuLocator<T> {
         return locator.locate(container, danmaku)
     }
 
+    override fun relocate(container: DanmakuContainer, danmaku: T): Boolean {
+        val locator = try {
+            DanmakuLocators.getLocator(danmaku.type)
+        } catch (e: Exception) {
+            return false
+        }
+        return locator.relocate(container, danmaku)
+    }
+
+    override fun resize(container: DanmakuContainer) {
+        val locators = DanmakuLocators.all
+        for (i in 0 until locators.size) {
+            locators[i].resize(container)
+        }
+    }
+
+    override fun hasRoom(container: DanmakuContainer, type: Int, time: Long): Boolean {
+        val locator = try {
+            DanmakuLocators.getLocator(type)
+        } catch (e: Exception) {
+            return false
+        }
+        return locator.hasRoom(container, type, time)
+    }
+
     override fun release(view: T) {
         val locator = try {
             DanmakuLocators.getLocator(view.type)
@@ -79,144 +124,156 @@ class DanmakuLocatorImpl<T : Danmaku> : DanmakuLocator<T> {
 }
 
 /**
- * TODO: 大量重复代码，可以合并
+ * Places danmakus in the lanes of a [LaneAllocator]. Subclasses decide when a lane can be reused and where the
+ * danmaku should be laid out horizontally.
  */
-internal class RLLocator : DanmakuLocator<RLDanmaku> {
-    private var tails: IntervalList<RLDanmaku>? = null
+internal abstract class LaneLocator<D : Danmaku> : DanmakuLocator<D> {
+    private var lanes: LaneAllocator<D>? = null
+
+    /** Text size the lanes are measured in **/
+    private var textSize = 0f
+
+    abstract fun createLanes(maxHeight: Int): LaneAllocator<D>
+
+    /**
+     * Lays out the [danmaku] with its top at [top] of the display area.
+     */
+    abstract fun layout(container: DanmakuContainer, danmaku: D, top: Int)
 
-    override fun locate(container: DanmakuContainer, danmaku: RLDanmaku): Boolean {
+    override fun locate(container: DanmakuContainer, danmaku: D): Boolean {
         val maxHeight: Int = (Danmakus.Options.displayArea * container.height).toInt()
-        val tails = this.tails ?: object : IntervalList<RLDanmaku>(0, maxHeight) {
-            override fun isAcquirable(interval: Interval, danmaku: RLDanmaku): Boolean {
-                with(interval.value) {
-                    if (this == null) return true
-                    if (parent == null) {
-                        // FIXME: 为何出现？释放失败？未调用 release？
-                        return true
-                    }
-                    return entirelyDisplayTime <= danmaku.time &&
-                            disappearTime <= danmaku.reachingEdgeTime
-                }
-            }
+        val lanes = this.lanes ?: createLanes(maxHeight).also { this.lanes = it }
+        val textSize = Danmakus.Globals.baseTextSize * Danmakus.Options.textScale
+        if (textSize != this.textSize) {
+            // Let the next danmaku decide the lane height of the new text size
+            this.textSize = textSize
+            lanes.setLaneHeight(0)
         }
-        this.tails = tails
-        if (tails.start != 0 || tails.end != maxHeight) {
-            /* --- Range changes --- */
-            tails.setRange(0, maxHeight)
+        /* --- No-op if range not changed --- */
+        lanes.setRange(0, maxHeight)
+        val top = lanes.acquire(danmaku)
+        if (top < 0) {
+            return false
         }
-        val interval = tails.acquire(danmaku)
-            ?: return false
-        val t = interval.start
-        val b = interval.end
-        val l = container.width
-        val r = l + danmaku.measuredWidth
-        danmaku.layout(l, t, r, b)
+        layout(container, danmaku, top)
         return true
     }
 
-    override fun release(view: RLDanmaku) {
-        tails?.release(view)
+    /**
+     * Keeps the [danmaku] in its lanes if they are still in the display area, and lays it out for the new size.
+     * The lanes are fitted to the new size by [resize] beforehand.
+     */
+    override fun relocate(container: DanmakuContainer, danmaku: D): Boolean {
+        val lanes = lanes ?: return false
+        val lane = danmaku.lane
+        if (lane < 0) {
+            // Its lanes are out of the new range
+            return false
+        }
+        if (lane + danmaku.laneSpan > lanes.laneCount) {
+            lanes.release(danmaku)
+            return false
+        }
+        layout(container, danmaku, lanes.start + lane * lanes.laneHeight)
+        lanes.rekey(danmaku)
+        return true
+    }
+
+    override fun resize(container: DanmakuContainer) {
+        lanes?.setRange(0, (Danmakus.Options.displayArea * container.height).toInt())
+    }
+
+    override fun hasRoom(container: DanmakuContainer, type: Int, time: Long): Boolean {
+        return lanes?.hasRoom(time) ?: true
+    }
+
+    override fun release(view: D) {
+        lanes?.release(view)
     }
 }
 
-internal class LRLocator : DanmakuLocator<LRDanmaku> {
-    private var tails: IntervalList<LRDanmaku>? = null
+/**
+ * A lane can be reused by a scrolling danmaku after the last one has entirely displayed, and the new one can't
+ * catch up with it before it disappears.
+ */
+private class ScrollingLanes<D : TopScrollDanmaku>(maxHeight: Int) : LaneAllocator<D>(0, maxHeight) {
+    override fun keysOf(danmaku: D, out: LongArray) {
+        out[0] = danmaku.entirelyDisplayTime.toLong()
+        out[1] = danmaku.disappearTime
+    }
 
-    override fun locate(container: DanmakuContainer, danmaku: LRDanmaku): Boolean {
-        val maxHeight: Int = (Danmakus.Options.displayArea * container.height).toInt()
-        val tails = this.tails ?: object : IntervalList<LRDanmaku>(0, maxHeight) {
-            override fun isAcquirable(interval: Interval, danmaku: LRDanmaku): Boolean {
-                return (interval.value ?: return true).let { current ->
-                    current.parent == null ||
-                            current.entirelyDisplayTime <= danmaku.time &&
-                            current.disappearTime <= danmaku.reachingEdgeTime
-                }
-            }
-        }
-        if (this.tails == null) {
-            this.tails = tails
-        }
-        if (tails.start != 0 || tails.end != maxHeight) {
-            /* --- Range changes --- */
-            tails.setRange(0, maxHeight)
-        }
-        val interval = tails.acquire(danmaku)
-            ?: return false
-        val t = interval.start
-        val b = interval.end
-        val l = -danmaku.measuredWidth
-        val r = 0
-        danmaku.layout(l, t, r, b)
-        return true
+    override fun limitsOf(danmaku: D, out: LongArray) {
+        out[0] = danmaku.time
+        out[1] = danmaku.reachingEdgeTime.toLong()
     }
 
-    override fun release(view: LRDanmaku) {
-        tails?.release(view)
+    override fun roomLimitsOf(time: Long, out: LongArray): Boolean {
+        out[0] = time
+        // A danmaku of no width reaches the edge latest
+        out[1] = time + Danmakus.Options.scrollingDanmakuDuration
+        return true
     }
 }
 
-internal class TopLocator : DanmakuLocator<TopPinnedDanmaku> {
-    private var tails: IntervalList<TopPinnedDanmaku>? = null
+/**
+ * A lane can be reused by a pinned danmaku only when it's free.
+ */
+private class PinnedLanes<D : PinnedDanmaku>(maxHeight: Int) : LaneAllocator<D>(0, maxHeight) {
+    override fun keysOf(danmaku: D, out: LongArray) {
+        out[0] = BLOCKED
+        out[1] = BLOCKED
+    }
 
-    override fun locate(container: DanmakuContainer, danmaku: TopPinnedDanmaku): Boolean {
-        val maxHeight: Int = (Danmakus.Options.displayArea * container.height).toInt()
-        val tails = this.tails ?: object : IntervalList<TopPinnedDanmaku>(0, maxHeight) {
-            override fun isAcquirable(interval: Interval, danmaku: TopPinnedDanmaku): Boolean =
-                with(interval.value) {
-                    return this == null || parent == null
-                }
-        }
-        if (this.tails == null) {
-            this.tails = tails
-        }
-        if (tails.start != 0 || tails.end != maxHeight) {
-            /* --- Range changes --- */
-            tails.setRange(0, maxHeight)
-        }
-        val interval = tails.acquire(danmaku)
-            ?: return false
-        val t = interval.start
-        val b = interval.end
-        val l = container.width / 2 - danmaku.measuredWidth / 2
-        val r = container.width / 2 + danmaku.measuredWidth / 2
-        danmaku.layout(l, t, r, b)
+    override fun limitsOf(danmaku: D, out: LongArray) {
+        out[0] = FREE
+        out[1] = FREE
+    }
+
+    override fun roomLimitsOf(time: Long, out: LongArray): Boolean {
+        out[0] = FREE
+        out[1] = FREE
         return true
     }
+}
 
-    override fun release(view: TopPinnedDanmaku) {
-        tails?.release(view)
+internal class RLLocator : LaneLocator<RLDanmaku>() {
+    override fun createLanes(maxHeight: Int): LaneAllocator<RLDanmaku> = ScrollingLanes(maxHeight)
+
+    override fun layout(container: DanmakuContainer, danmaku: RLDanmaku, top: Int) {
+        val l = container.width
+        val r = l + danmaku.measuredWidth
+        danmaku.layout(l, top, r, top + danmaku.measuredHeight)
     }
 }
 
-internal class BottomLocator : DanmakuLocator<BottomPinnedDanmaku> {
-    private var tails: IntervalList<BottomPinnedDanmaku>? = null
+internal class LRLocator : LaneLocator<LRDanmaku>() {
+    override fun createLanes(maxHeight: Int): LaneAllocator<LRDanmaku> = ScrollingLanes(maxHeight)
 
-    override fun locate(container: DanmakuContainer, danmaku: BottomPinnedDanmaku): Boolean {
-        val maxHeight: Int = (Danmakus.Options.displayArea * container.height).toInt()
-        val tails = this.tails ?: object : IntervalList<BottomPinnedDanmaku>(0, maxHeight) {
-            override fun isAcquirable(interval: Interval, danmaku: BottomPinnedDanmaku): Boolean =
-                with(interval.value) {
-                    return this == null || parent == null
-                }
-        }
-        if (this.tails == null) {
-            this.tails = tails
-        }
-        if (tails.start != 0 || tails.end != maxHeight) {
-            /* --- Range changes --- */
-            tails.setRange(0, maxHeight)
-        }
-        val interval = tails.acquire(danmaku)
-            ?: return false
-        val t = container.height - interval.end
-        val b = container.height - interval.start
+    override fun layout(container: DanmakuContainer, danmaku: LRDanmaku, top: Int) {
+        val l = -danmaku.measuredWidth
+        val r = 0
+        danmaku.layout(l, top, r, top + danmaku.measuredHeight)
+    }
+}
+
+internal class TopLocator : LaneLocator<TopPinnedDanmaku>() {
+    override fun createLanes(maxHeight: Int): LaneAllocator<TopPinnedDanmaku> = PinnedLanes(maxHeight)
+
+    override fun layout(container: DanmakuContainer, danmaku: TopPinnedDanmaku, top: Int) {
         val l = container.width / 2 - danmaku.measuredWidth / 2
         val r = container.width / 2 + danmaku.measuredWidth / 2
-        danmaku.layout(l, t, r, b)
-        return true
+        danmaku.layout(l, top, r, top + danmaku.measuredHeight)
     }
+}
+
+internal class BottomLocator : LaneLocator<BottomPinnedDanmaku>() {
+    override fun createLanes(maxHeight: Int): LaneAllocator<BottomPinnedDanmaku> = PinnedLanes(maxHeight)
 
-    override fun release(view: BottomPinnedDanmaku) {
-        tails?.release(view)
+    override fun layout(container: DanmakuContainer, danmaku: BottomPinnedDanmaku, top: Int) {
+        val t = container.height - top - danmaku.measuredHeight
+        val b = container.height - top
+        val l = container.width / 2 - danmaku.measuredWidth / 2
+        val r = container.width / 2 + danmaku.measuredWidth / 2
+        danmaku.layout(l, t, r, b)
     }
 }
@@ -0,0 +1,286 @@
+package top.littlefogcat.easydanmaku.ui
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Typeface
+import android.text.TextPaint
+import top.littlefogcat.easydanmaku.Danmakus
+import top.littlefogcat.easydanmaku.danmakus.DanmakuAvatarAtlas
+import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
+import top.littlefogcat.easydanmaku.danmakus.DanmakuPrepared
+import top.littlefogcat.esus.widget.TextMeasureCache
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Lookahead stage of a [DanmakuContainer], preparing danmakus due within [Danmakus.Options.lookaheadMillis] on a
+ * worker thread.
+ *
+ * The worker measures the text and rasterizes the avatar at the size of the atlas cells, unless the avatar is in the
+ * atlas already when scheduled, and attaches the results to [DanmakuItem.prepared]. When a prepared danmaku is admitted, [install] puts the results into the
+ * [TextMeasureCache] and the [DanmakuAvatarAtlas] of the ESUS main thread, so that the frame admitting it only
+ * positions and draws it. Danmakus admitted before prepared, e.g. offered to be shown right away, are measured on
+ * the ESUS main thread as before.
+ *
+ * Scheduled danmakus are appended to a reused list, and one reused task drains it on the worker, so [schedule]
+ * allocates nothing once the list has grown. Avatar bitmaps are handed back by [install] once copied into the atlas,
+ * and the worker rasterizes the next avatars into them.
+ *
+ * [schedule] and [install] should only be used in the ESUS main thread.
+ */
+internal class DanmakuLookahead(
+    /**
+     * Runs the task preparing danmakus, the worker shared by all containers by default. The measuring state of the
+     * worker is shared, so it must run on that worker, or be the only lookahead running.
+     */
+    private val executor: Executor = sharedExecutor,
+) {
+    companion object {
+        private const val KEEP_ALIVE_SECONDS = 10L
+        private const val MAX_CONTAINERS = 16
+        private const val MAX_SPARE_AVATARS = 4
+
+        /**
+         * Shared by all containers, the thread exits when idle. Each container has at most one task queued, so the
+         * array queue never allocates a node per task.
+         */
+        private val sharedExecutor = ThreadPoolExecutor(
+            1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, ArrayBlockingQueue(MAX_CONTAINERS),
+            ThreadFactory { Thread(it, "Danmaku:lookahead") }
+        ).apply { allowCoreThreadTimeOut(true) }
+
+        /** Only used in the worker thread **/
+        private val measureCache = TextMeasureCache()
+        private val paint = TextPaint().apply { isAntiAlias = true }
+        private val canvas = Canvas()
+    }
+
+    private val prepared = AtomicLong()
+
+    /** Count of admitted danmakus prepared in time **/
+    @Volatile
+    var hits = 0L
+        private set
+
+    /** Count of admitted danmakus not prepared in time **/
+    @Volatile
+    var misses = 0L
+        private set
+
+    private val lock = Any()
+
+    /** Danmakus scheduled and not taken by the worker yet, guarded by [lock] **/
+    private var scheduled = ArrayList<DanmakuItem>()
+
+    /** Danmakus being prepared, only used in the worker thread **/
+    private var preparing = ArrayList<DanmakuItem>()
+
+    /** Options read in the ESUS main thread on last schedule, guarded by [lock] **/
+    private var baseTextSize = 0f
+    private var typeface: Typeface? = null
+
+    /** Whether [drain] is queued or running, guarded by [lock] **/
+    private var draining = false
+
+    /** Avatar bitmaps copied into the atlas, to be rasterized into again, guarded by [lock] **/
+    private val spareAvatars = ArrayList<Bitmap>(MAX_SPARE_AVATARS)
+
+    private val drainTask = Runnable { drain() }
+
+    /**
+     * Hands the danmakus in [items] that are not handed yet to the worker.
+     */
+    fun schedule(items: List<DanmakuItem>) {
+        if (items.isEmpty()) {
+            return
+        }
+        var execute = false
+        synchronized(lock) {
+            var added = false
+            for (i in 0 until items.size) {
+                val item = items[i]
+                if (item.lookaheadScheduled) {
+                    continue
+                }
+                item.lookaheadScheduled = true
+                val avatar = item.avatar
+                val key = item.avatarKey
+                item.prepareAvatar = avatar != null && key != null && !DanmakuAvatarAtlas.contains(key, avatar)
+                scheduled.add(item)
+                added = true
+            }
+            if (!added) {
+                return
+            }
+            // Read here, since options are changed in the ESUS main thread
+            baseTextSize = Danmakus.Globals.baseTextSize * Danmakus.Options.textScale
+            typeface = Danmakus.Globals.paint.typeface
+            if (!draining) {
+                draining = true
+                execute = true
+            }
+        }
+        if (execute) {
+            try {
+                executor.execute(drainTask)
+            } catch (e: RejectedExecutionException) {
+                // Too many containers at once, try again on next schedule
+                synchronized(lock) {
+                    draining = false
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the results prepared for [item] into the caches used by a danmaku of [textSize]. Results prepared for
+     * another text size are dropped.
+     */
+    fun install(item: DanmakuItem, textSize: Float, cache: TextMeasureCache?) {
+        val prepared = consume(item)
+        if (prepared == null) {
+            misses++
+            return
+        }
+        if (prepared.textSize != textSize || prepared.typeface !== Danmakus.Globals.paint.typeface) {
+            misses++
+            prepared.avatar?.let { recycleAvatar(it) }
+            return
+        }
+        hits++
+        val avatar = item.avatar
+        cache?.put(item.text, textSize, prepared.typeface, avatar != null, prepared.metrics)
+        val key = item.avatarKey
+        if (prepared.avatar != null) {
+            if (avatar != null && key != null) {
+                DanmakuAvatarAtlas.put(key, avatar, prepared.avatar)
+            }
+            // Copied into the atlas, so the worker may draw into it again
+            recycleAvatar(prepared.avatar)
+        }
+    }
+
+    /**
+     * Drops the results prepared for [item], e.g. when it's dropped before shown, so that its avatar bitmap is
+     * reused instead of kept with the item.
+     */
+    fun release(item: DanmakuItem) {
+        consume(item)?.avatar?.let { recycleAvatar(it) }
+    }
+
+    /**
+     * Takes the results of [item] and marks it consumed, so that the worker recycles what it prepares later.
+     */
+    private fun consume(item: DanmakuItem): DanmakuPrepared? {
+        synchronized(lock) {
+            item.lookaheadConsumed = true
+            val prepared = item.prepared
+            item.prepared = null
+            return prepared
+        }
+    }
+
+    private fun recycleAvatar(bitmap: Bitmap) {
+        val eldest = synchronized(lock) {
+            val spares = spareAvatars
+            // The eldest one is dropped, e.g. of the size before the cells grew
+            val eldest = if (spares.size >= MAX_SPARE_AVATARS) spares.removeAt(0) else null
+            spares.add(bitmap)
+            eldest
+        }
+        eldest?.recycle()
+    }
+
+    /**
+     * Returns a spare avatar bitmap of [size] cleared, or a new one. Runs in the worker thread.
+     */
+    private fun obtainAvatar(size: Int): Bitmap {
+        val spare = synchronized(lock) {
+            val spares = spareAvatars
+            var index = spares.size - 1
+            while (index >= 0 && spares[index].width != size) {
+                index--
+            }
+            if (index >= 0) spares.removeAt(index) else null
+        } ?: return Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)
+        spare.eraseColor(Color.TRANSPARENT)
+        return spare
+    }
+
+    /**
+     * Prepares the scheduled danmakus in batches until none is left. Runs in the worker thread.
+     */
+    private fun drain() {
+        while (true) {
+            val baseTextSize: Float
+            val typeface: Typeface?
+            val batch = preparing
+            synchronized(lock) {
+                if (scheduled.isEmpty()) {
+                    draining = false
+                    return
+                }
+                // Swap the lists, so that the ESUS main thread keeps appending while the worker prepares
+                preparing = scheduled
+                scheduled = batch
+                baseTextSize = this.baseTextSize
+                typeface = this.typeface
+            }
+            val danmakus = preparing
+            for (i in 0 until danmakus.size) {
+                prepare(danmakus[i], baseTextSize, typeface)
+            }
+            danmakus.clear()
+        }
+    }
+
+    private fun prepare(item: DanmakuItem, baseTextSize: Float, typeface: Typeface?) {
+        if (synchronized(lock) { item.lookaheadConsumed }) {
+            // Shown or dropped already
+            return
+        }
+        val textSize = baseTextSize * item.textScale
+        val avatar = item.avatar
+        paint.textSize = textSize
+        paint.typeface = typeface
+        val metrics = measureCache.measure(item.text, paint, avatar != null)
+        // Same as TextView.drawableSize, rounded up to the cells of the atlas
+        val avatarSize = DanmakuAvatarAtlas.cellSizeOf((textSize * 1.2).toInt())
+        val bitmap = if (avatar != null && item.prepareAvatar && avatarSize > 0) {
+            // A copy of the drawable, since the original one may be drawn in the ESUS main thread meanwhile
+            avatar.constantState?.newDrawable()?.mutate()?.let {
+                val bitmap = obtainAvatar(avatarSize)
+                canvas.setBitmap(bitmap)
+                it.setBounds(0, 0, avatarSize, avatarSize)
+                it.draw(canvas)
+                canvas.setBitmap(null)
+                bitmap
+            }
+        } else {
+            null
+        }
+        val result = DanmakuPrepared(textSize, typeface, metrics, bitmap)
+        val attached = synchronized(lock) {
+            if (!item.lookaheadConsumed) {
+                item.prepared = result
+            }
+            !item.lookaheadConsumed
+        }
+        if (!attached) {
+            // Shown or dropped while preparing, nobody will install it
+            bitmap?.let { recycleAvatar(it) }
+            return
+        }
+        prepared.incrementAndGet()
+    }
+
+    override fun toString(): String {
+        return "(prepared=${prepared.get()}, hits=$hits, misses=$misses)"
+    }
+}
@@ -14,14 +14,42 @@ interface DanmakuResolver {
      */
     fun setData(danmakus: Collection<DanmakuItem>)
 
+    /**
+     * Appends a danmaku to the list. It can be called from any thread and never blocks; the danmaku is merged
+     * into the list on the next retrieve.
+     *
+     * A danmaku whose time is before the last [retrieve] is due immediately. Its time is not changed.
+     */
+    fun offer(danmaku: DanmakuItem)
+
     /**
      * Returns the danmakus since last retrieve to [time]. If it's the first time invoked,
-     * returns danmakus from 0 to [time].
+     * returns danmakus from 0 to [time]. The returned collection is a copy, see [retrieve] with an out list to avoid
+     * it.
+     *
+     * Danmakus returned by this function are consumed, and won't be returned by later calls, unless [time] goes back.
+     * Consumed danmakus may be dropped by the resolver, so going back only returns the ones still kept.
+     */
+    fun retrieve(time: Long): Collection<DanmakuItem> = ArrayList<DanmakuItem>().also { retrieve(time, it) }
+
+    /**
+     * Same as [retrieve], but appends the danmakus to [out].
+     */
+    fun retrieve(time: Long, out: MutableList<DanmakuItem>)
+
+    /**
+     * Returns the danmakus between time [startTime] and [endTime]. The returned collection is a copy.
+     */
+    fun retrieve(startTime: Long, endTime: Long): Collection<DanmakuItem> =
+        ArrayList<DanmakuItem>().also { retrieve(startTime, endTime, it) }
+
+    /**
+     * Same as [retrieve] of a range, but appends the danmakus to [out]. Nothing is consumed.
      */
-    fun retrieve(time: Long): Collection<DanmakuItem>
+    fun retrieve(startTime: Long, endTime: Long, out: MutableList<DanmakuItem>)
 
     /**
-     * Returns the danmakus between time [startTime] and [endTime].
+     * Returns whether there's no danmaku left to be retrieved by [retrieve], including the ones not merged yet.
      */
-    fun retrieve(startTime: Long, endTime: Long): Collection<DanmakuItem>
+    fun isEmpty(): Boolean
 }
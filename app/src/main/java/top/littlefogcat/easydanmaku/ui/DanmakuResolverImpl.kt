@@ -1,35 +1,139 @@
 package top.littlefogcat.easydanmaku.ui
 
 import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
-import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicReference
 
 /**
+ * Danmakus are kept in a list sorted by time. [setData] and [offer] may be called from any thread, the changes are
+ * queued and merged on the thread calling [retrieve], i.e. the ESUS main thread.
+ *
+ * Danmakus before [cursor] are consumed. They stay in the list until they are half of it, and are then removed at
+ * once, so that a long session doesn't keep every danmaku offered since start, with its avatar, while retrieving
+ * stays amortized O(1) per danmaku.
+ *
  * @author littlefogcat
  * @email littlefogcat@foxmail.com
  */
 class DanmakuResolverImpl : DanmakuResolver {
-    private var data = TreeSet<DanmakuItem>(compareBy { danmaku -> danmaku.time })
+    companion object {
+        /** Consumed danmakus are kept at least up to this count, so that short lists are never compacted **/
+        private const val MIN_COMPACT_SIZE = 256
+    }
+
+    private val data = ArrayList<DanmakuItem>()
     private var lastRetrieveTime = 0L
-    private val startItem = DanmakuItem("", 0, 0, 0, 0)
-    private val endItem = DanmakuItem("", 0, 0, 0, 0)
+
+    /** Index of the first danmaku not consumed **/
+    private var cursor = 0
+
+    /** Danmakus offered behind [cursor], due on next retrieve **/
+    private val late = ArrayList<DanmakuItem>()
+
+    /** Lock-free queue of appended danmakus, multi-producer and single consumer **/
+    private val pending = ConcurrentLinkedQueue<DanmakuItem>()
+    private val pendingData = AtomicReference<Collection<DanmakuItem>?>(null)
 
     override fun setData(danmakus: Collection<DanmakuItem>) {
-        data.clear()
-        data.addAll(danmakus)
+        pendingData.set(ArrayList(danmakus))
+    }
+
+    override fun offer(danmaku: DanmakuItem) {
+        pending.offer(danmaku)
     }
 
-    override fun retrieve(time: Long): Collection<DanmakuItem> {
-        val startTime = lastRetrieveTime
+    override fun retrieve(time: Long, out: MutableList<DanmakuItem>) {
+        merge()
+        val late = late
+        for (i in 0 until late.size) {
+            out.add(late[i])
+        }
+        late.clear()
+        val to = lowerBound(time)
+        if (time >= lastRetrieveTime) {
+            for (i in cursor until to) {
+                out.add(data[i])
+            }
+        }
+        // Goes back as well if time goes back, so that the danmakus after it are retrieved again
+        cursor = to
         lastRetrieveTime = time
-        return retrieve(startTime, time)
+        if (cursor >= MIN_COMPACT_SIZE && cursor > data.size / 2) {
+            compact()
+        }
+    }
+
+    /**
+     * Removes the consumed danmakus before [cursor], moving the rest to the front without allocating.
+     */
+    private fun compact() {
+        val data = data
+        val cursor = cursor
+        for (i in cursor until data.size) {
+            data[i - cursor] = data[i]
+        }
+        // From the end, so that nothing is moved
+        for (i in data.size - 1 downTo data.size - cursor) {
+            data.removeAt(i)
+        }
+        this.cursor = 0
     }
 
-    override fun retrieve(startTime: Long, endTime: Long): Collection<DanmakuItem> {
+    override fun retrieve(startTime: Long, endTime: Long, out: MutableList<DanmakuItem>) {
+        merge()
         if (endTime <= startTime) {
-            return Collections.emptyList()
+            return
+        }
+        val to = lowerBound(endTime)
+        for (i in lowerBound(startTime) until to) {
+            out.add(data[i])
+        }
+    }
+
+    override fun isEmpty(): Boolean {
+        return pending.isEmpty() && pendingData.get() == null && late.isEmpty() && cursor >= data.size
+    }
+
+    private fun merge() {
+        pendingData.getAndSet(null)?.let { danmakus ->
+            data.clear()
+            data.addAll(danmakus)
+            data.sortBy { it.time }
+            late.clear()
+            cursor = lowerBound(lastRetrieveTime)
+        }
+        while (true) {
+            val danmaku = pending.poll() ?: break
+            // Keep insertion order of danmakus with the same time
+            val index = upperBound(danmaku.time)
+            data.add(index, danmaku)
+            if (index < cursor) {
+                // Too late, show it on next retrieve instead of dropping it
+                cursor++
+                late.add(danmaku)
+            }
+        }
+    }
+
+    /** Returns the index of the first danmaku whose time >= [time] **/
+    private fun lowerBound(time: Long): Int {
+        var lo = 0
+        var hi = data.size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (data[mid].time < time) lo = mid + 1 else hi = mid
+        }
+        return lo
+    }
+
+    /** Returns the index of the first danmaku whose time > [time] **/
+    private fun upperBound(time: Long): Int {
+        var lo = 0
+        var hi = data.size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (data[mid].time <= time) lo = mid + 1 else hi = mid
         }
-        startItem.time = startTime
-        endItem.time = endTime
-        return data.subSet(startItem, endItem)
+        return lo
     }
 }
@@ -3,13 +3,13 @@ package top.littlefogcat.easydanmaku.ui
 import android.content.Context
 import android.graphics.*
 import android.util.AttributeSet
+import android.view.SurfaceHolder
 import android.view.Choreographer
 import top.littlefogcat.easydanmaku.Danmakus
 import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
 import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
 import top.littlefogcat.esus.EsusSurfaceView
 import top.littlefogcat.esus.view.View
-import top.littlefogcat.esus.view.util.Timing
 import java.lang.Exception
 
 /**
@@ -23,13 +23,16 @@ import java.lang.Exception
  * This function accepts one `Collection<Danmaku>` parameter. Make sure the collection is **sorted by [Danmaku.time]
  * in ascending.**
  *
+ * Use [offerDanmaku] to append a danmaku without replacing the existing ones. It can be called from any thread.
+ *
  * ## Update time
  *
  * The UI system is driven by [time]. On each frame, [time] is read by ESUS to update the view tree. The time is
  * set by the application manually.
  *
- * Function [setActionOnFrame] may be useful when updating [time]. The action is called on each frame by main
- * thread's Choreographer.
+ * Function [setActionOnFrame] may be useful when updating [time]. The action is called on each frame at
+ * [frameRate] by main thread's Choreographer, and also when the render loop wakes from idle, in the thread waking
+ * it, since the frame callback is removed while idle.
  *
  * One way to update `ISurface.time`:
  * ```kotlin
@@ -57,17 +60,14 @@ import java.lang.Exception
 class DanmakuView : EsusSurfaceView, IDanmakuView {
     override val rootView = DanmakuContainer()
     private val container get() = rootView
+    override val useRenderThread = true
 
     private var actionOnFrame: ((Long) -> Unit)? = null
-    override var frameTask = object : Choreographer.FrameCallback {
-        override fun doFrame(frameTimeNanos: Long) {
-            /*
-             * 重要：尽量避免在主线程使用getCurrentPosition()，其会阻塞当前线程，频繁使用会导致丢帧！
-             */
-            actionOnFrame?.invoke(frameTimeNanos)
-            Choreographer.getInstance().postFrameCallback(this)
-        }
-    }
+    private var onIdleListener: ((Boolean) -> Unit)? = null
+    private var onFirstFrameListener: ((Long) -> Unit)? = null
+
+    /** Scroll duration to apply on next resize, 0 if none **/
+    private var pendingScrollDuration = 0
 
     constructor(context: Context?) : super(context)
     constructor(context: Context?, attrs: AttributeSet?) : super(context, attrs)
@@ -76,7 +76,7 @@ class DanmakuView : EsusSurfaceView, IDanmakuView {
     init {
         holder.setFormat(PixelFormat.TRANSLUCENT)
         setZOrderOnTop(true)
-        Timing.enable = true
+        frameRate = Danmakus.Options.frameRate
     }
 
     fun finish() {
@@ -97,6 +97,30 @@ class DanmakuView : EsusSurfaceView, IDanmakuView {
         container.setDanmakus(danmakus)
     }
 
+    override fun offerDanmaku(danmaku: DanmakuItem) {
+        container.offerDanmaku(danmaku)
+    }
+
+    override fun prewarm(type: Int, count: Int) {
+        container.pools.prewarm(type, count)
+    }
+
+    /** Hits, misses and rejected releases of the danmaku pools **/
+    val poolStats: String
+        get() = container.pools.toString()
+
+    /** Max count of danmakus shown at the same time **/
+    val peakLiveViews: Int
+        get() = container.peakChildCount
+
+    /** Admitted, deferred and dropped danmakus **/
+    val admissionStats: String
+        get() = container.admissionStats
+
+    /** Danmakus prepared ahead of time, and whether they were prepared in time when shown **/
+    val lookaheadStats: String
+        get() = container.lookaheadStats
+
     override fun setShow(show: Boolean) {
         container.setVisibility(if (show) View.VISIBLE else View.GONE)
     }
@@ -123,6 +147,41 @@ class DanmakuView : EsusSurfaceView, IDanmakuView {
         actionOnFrame = action
     }
 
+    /**
+     * The time is set by [actionOnFrame], which is also called when the render loop wakes from idle.
+     */
+    override fun updateTime(frameTimeNanos: Long) {
+        /*
+         * 重要：尽量避免在主线程使用getCurrentPosition()，其会阻塞当前线程，频繁使用会导致丢帧！
+         */
+        actionOnFrame?.invoke(frameTimeNanos)
+    }
+
+    /**
+     * Sets a listener called when no danmaku is shown or waiting to be shown, or when new danmakus arrive after that.
+     * It may be called from any thread.
+     */
+    fun setOnIdleListener(l: ((Boolean) -> Unit)?) {
+        onIdleListener = l
+    }
+
+    /**
+     * Sets a listener called with [System.nanoTime] when the first frame is posted. It's called in the ESUS main
+     * thread.
+     */
+    fun setOnFirstFrameListener(l: ((Long) -> Unit)?) {
+        onFirstFrameListener = l
+    }
+
+    override fun onIdle(idle: Boolean) {
+        super.onIdle(idle)
+        onIdleListener?.invoke(idle)
+    }
+
+    override fun onFirstFrame(timeNanos: Long) {
+        onFirstFrameListener?.invoke(timeNanos)
+    }
+
     override fun pause(danmaku: Danmaku) {
         danmaku.pause()
     }
@@ -147,6 +206,22 @@ class DanmakuView : EsusSurfaceView, IDanmakuView {
         Danmakus.Options.scrollingDanmakuDuration = duration
     }
 
+    /**
+     * Changes the scroll duration when the surface is resized next, e.g. together with a new window size on
+     * rotation, so that the danmakus shown are moved onto the new size and speed in one pass.
+     */
+    fun setScrollDurationOnResize(duration: Int) {
+        pendingScrollDuration = duration
+    }
+
+    override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
+        if (pendingScrollDuration > 0) {
+            Danmakus.Options.scrollingDanmakuDuration = pendingScrollDuration
+            pendingScrollDuration = 0
+        }
+        super.surfaceChanged(holder, format, width, height)
+    }
+
     override fun setPinnedDuration(duration: Int) {
         Danmakus.Options.pinnedDanmakuDuration = duration
     }
@@ -1,6 +1,7 @@
 package top.littlefogcat.easydanmaku.ui
 
 import android.widget.MediaController
+import top.littlefogcat.easydanmaku.Danmakus
 import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
 import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
 
@@ -26,6 +27,17 @@ interface IDanmakuView {
      */
     fun setDanmakus(danmakus: Collection<DanmakuItem>)
 
+    /**
+     * Append a danmaku to data. Can be called from any thread.
+     */
+    fun offerDanmaku(danmaku: DanmakuItem)
+
+    /**
+     * Creates [count] danmakus of [type] in background in advance, so that they don't need to be created when
+     * shown. No more than [Danmakus.Options.poolSizes] are kept.
+     */
+    fun prewarm(type: Int, count: Int)
+
     /** Set if danmakus are visible **/
     fun setShow(show: Boolean)
 
@@ -0,0 +1,170 @@
+package top.littlefogcat.easydanmaku.ui
+
+import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
+import top.littlefogcat.easydanmaku.danmakus.views.TopScrollDanmaku
+
+/**
+ * Motion state of all live scrolling danmakus in a [DanmakuContainer], packed in primitive columns.
+ *
+ * Each row holds one laid out [TopScrollDanmaku], and [TopScrollDanmaku.motionRow] is its index. All rows are
+ * advanced in one loop by [update], then the positions are written back to the views, so that no virtual call or
+ * nullable getter is made per danmaku while computing the motion.
+ *
+ * Rows are removed by moving the last row into the hole, so the order of rows is not the drawing order.
+ *
+ * Should only be used in the ESUS main thread.
+ */
+internal class MotionTable {
+    companion object {
+        private const val INITIAL_CAPACITY = 32
+    }
+
+    var size = 0
+        private set
+
+    /** Width of the container, which is the distance of scrolling besides the width of danmaku **/
+    var containerWidth = 0f
+        private set
+
+    private var views = arrayOfNulls<TopScrollDanmaku>(INITIAL_CAPACITY)
+    private var startTime = LongArray(INITIAL_CAPACITY)
+    private var pausedDuration = LongArray(INITIAL_CAPACITY)
+    private var lastTime = LongArray(INITIAL_CAPACITY)
+    private var duration = FloatArray(INITIAL_CAPACITY)
+    private var width = FloatArray(INITIAL_CAPACITY)
+
+    /** -1 for right to left, 1 for left to right **/
+    private var direction = FloatArray(INITIAL_CAPACITY)
+    private var process = FloatArray(INITIAL_CAPACITY)
+    private var x = FloatArray(INITIAL_CAPACITY)
+
+    /**
+     * Adds a laid out [danmaku] and returns its row.
+     */
+    fun add(danmaku: TopScrollDanmaku): Int {
+        if (danmaku.motionRow >= 0) {
+            return danmaku.motionRow
+        }
+        ensureCapacity(size + 1)
+        val row = size++
+        views[row] = danmaku
+        startTime[row] = danmaku.time
+        pausedDuration[row] = danmaku.pausedDuration
+        lastTime[row] = danmaku.lastDrawingTime
+        duration[row] = danmaku.duration.toFloat()
+        width[row] = danmaku.width.toFloat()
+        direction[row] = danmaku.direction.toFloat()
+        process[row] = danmaku.process
+        x[row] = danmaku.translationX
+        danmaku.motionRow = row
+        return row
+    }
+
+    /**
+     * Removes the row of [danmaku] if it has one.
+     */
+    fun remove(danmaku: TopScrollDanmaku) {
+        val row = danmaku.motionRow
+        if (row < 0 || row >= size || views[row] !== danmaku) {
+            return
+        }
+        danmaku.motionRow = -1
+        val last = --size
+        if (row != last) {
+            val moved = views[last]!!
+            views[row] = moved
+            startTime[row] = startTime[last]
+            pausedDuration[row] = pausedDuration[last]
+            lastTime[row] = lastTime[last]
+            duration[row] = duration[last]
+            width[row] = width[last]
+            direction[row] = direction[last]
+            process[row] = process[last]
+            x[row] = x[last]
+            moved.motionRow = row
+        }
+        views[last] = null
+    }
+
+    fun setContainerWidth(width: Int) {
+        containerWidth = width.toFloat()
+    }
+
+    /**
+     * Advances all rows to [time] and moves the views. The process is computed from the start time, so [time] may
+     * jump over frames.
+     */
+    fun update(time: Long) {
+        val views = views
+        val startTime = startTime
+        val pausedDuration = pausedDuration
+        val lastTime = lastTime
+        val duration = duration
+        val width = width
+        val direction = direction
+        val process = process
+        val x = x
+        val containerWidth = containerWidth
+        for (i in 0 until size) {
+            val last = lastTime[i]
+            if (last != -1L && views[i]!!.isPaused) {
+                pausedDuration[i] += time - last
+            }
+            lastTime[i] = time
+            val elapsed = time - startTime[i] - pausedDuration[i]
+            process[i] = if (elapsed <= 0) 0f else elapsed / duration[i]
+            x[i] = direction[i] * (containerWidth + width[i]) * process[i]
+        }
+        for (i in 0 until size) {
+            val view = views[i]!!
+            view.process = process[i]
+            view.pausedDuration = pausedDuration[i]
+            view.lastDrawingTime = time
+            view.translationX = x[i]
+        }
+    }
+
+    /**
+     * Changes the duration of all rows to [duration] at [time], keeping their process, so that the danmakus continue
+     * from where they are at the new speed. Their start time is moved accordingly, in the table and in the views,
+     * whose time is their own. [DanmakuItem.time] is left as it is, so the resolver order is kept.
+     */
+    fun setDuration(duration: Int, time: Long) {
+        val d = duration.toFloat()
+        for (i in 0 until size) {
+            val old = this.duration[i]
+            if (old == d) {
+                continue
+            }
+            val elapsed = maxOf(time - startTime[i] - pausedDuration[i], 0L)
+            startTime[i] = time - pausedDuration[i] - (elapsed / old * d).toLong()
+            this.duration[i] = d
+            // Only the view's own start, the item keeps the time it was sent at
+            views[i]!!.time = startTime[i]
+        }
+    }
+
+    fun clear() {
+        for (i in 0 until size) {
+            views[i]?.motionRow = -1
+            views[i] = null
+        }
+        size = 0
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (views.size >= capacity) {
+            return
+        }
+        val newCapacity = maxOf(capacity, views.size * 2)
+        views = views.copyOf(newCapacity)
+        startTime = startTime.copyOf(newCapacity)
+        pausedDuration = pausedDuration.copyOf(newCapacity)
+        lastTime = lastTime.copyOf(newCapacity)
+        duration = duration.copyOf(newCapacity)
+        width = width.copyOf(newCapacity)
+        direction = direction.copyOf(newCapacity)
+        process = process.copyOf(newCapacity)
+        x = x.copyOf(newCapacity)
+    }
+}
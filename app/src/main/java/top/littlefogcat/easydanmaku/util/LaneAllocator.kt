@@ -0,0 +1,392 @@
+package top.littlefogcat.easydanmaku.util
+
+import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+
+/**
+ * 弹道分配器，作用是查找不重叠弹幕位置。
+ *
+ * The vertical range [start, end) is split into lanes of [laneHeight] pixels. A danmaku occupies
+ * `ceil(measuredHeight / laneHeight)` consecutive lanes. Every lane remembers the last danmaku placed in it
+ * as a pair of keys `(enter, leave)`, and a newcomer may use the lane if `enter <= enterLimit` and
+ * `leave <= leaveLimit` (see [keysOf] and [limitsOf]).
+ *
+ * The enter limit of newcomers only grows with time, so a lane whose enter key has been passed stays passed. Each
+ * lane is folded into one key: its leave key once its enter key is passed, or [BLOCKED] before that. Passing a lane
+ * is done once per occupant, and a lane is acquirable if and only if its folded key is within the leave limit, so
+ * finding the first acquirable lane and checking a span are one-dimensional queries on a min/max segment tree,
+ * O(log n) each. A span of more lanes than one may be retried once for each shorter run of acquirable lanes before
+ * it. When the enter limit goes back, e.g. the time is reset, all lanes are folded again in O(n).
+ *
+ * Use `acquire` to allocate room for danmaku.
+ * Use `release` to release room when the danmaku is no longer used.
+ */
+abstract class LaneAllocator<T : Danmaku>(start: Int, end: Int) {
+    companion object {
+        const val FREE = Long.MIN_VALUE
+        const val BLOCKED = Long.MAX_VALUE
+    }
+
+    var start = start
+        private set
+    var end = end
+        private set
+
+    /**
+     * Height of a lane in pixels. It's decided by the first acquired danmaku, or set with [setLaneHeight].
+     */
+    var laneHeight = 0
+        private set
+
+    /** Count of lanes in [start, end) **/
+    var laneCount = 0
+        private set
+
+    private var capacity = 0
+    private var occupants = arrayOfNulls<Danmaku>(0)
+
+    /** Keys of each lane, set by [keysOf] **/
+    private var enterKeys = LongArray(0)
+    private var leaveKeys = LongArray(0)
+
+    /** Segment tree of the enter keys not passed yet, [BLOCKED] for none **/
+    private var minPending = LongArray(0)
+
+    /** Segment trees of the folded keys **/
+    private var minKey = LongArray(0)
+    private var maxKey = LongArray(0)
+
+    /** Enter keys less than or equal to it are passed **/
+    private var passedLimit = FREE
+
+    /** Out parameters of [keysOf] and [limitsOf], to keep acquire allocation-free. **/
+    private val keys = LongArray(2)
+
+    /**
+     * Writes the keys of an occupying [danmaku] into [out]: `out[0]` is the enter key, `out[1]` the leave key.
+     */
+    abstract fun keysOf(danmaku: T, out: LongArray)
+
+    /**
+     * Writes the limits of a new [danmaku] into [out]: `out[0]` is the enter limit, `out[1]` the leave limit.
+     * A lane is acquirable by [danmaku] if its keys are both less than or equal to the limits.
+     */
+    abstract fun limitsOf(danmaku: T, out: LongArray)
+
+    /**
+     * Writes the loosest limits a newcomer starting at [time] may have into [out], in the same way as [limitsOf].
+     * Returns false if they can't be known without the newcomer, and [hasRoom] is always true.
+     */
+    open fun roomLimitsOf(time: Long, out: LongArray): Boolean = false
+
+    /**
+     * Returns whether a danmaku of one lane starting at [time] may be acquirable, without measuring it. False means no
+     * danmaku can be acquired now, while true doesn't guarantee that [acquire] succeeds.
+     */
+    fun hasRoom(time: Long): Boolean {
+        if (laneHeight == 0 || !roomLimitsOf(time, keys)) {
+            // Not known until a danmaku is acquired
+            return true
+        }
+        val leaveLimit = keys[1]
+        pass(keys[0])
+        if (minKey[1] <= leaveLimit) {
+            return true
+        }
+        return purgeDetached() && minKey[1] <= leaveLimit
+    }
+
+    /**
+     * 为[danmaku]分配弹道，返回弹道顶部的位置；如果没有足够的空隙则返回-1。
+     */
+    fun acquire(danmaku: T): Int {
+        val height = danmaku.measuredHeight
+        if (height <= 0) {
+            return -1
+        }
+        if (laneHeight == 0) {
+            setLaneHeight(height)
+        }
+        val span = (height + laneHeight - 1) / laneHeight
+        if (span > laneCount) {
+            return -1
+        }
+        limitsOf(danmaku, keys)
+        val leaveLimit = keys[1]
+        pass(keys[0])
+        var purged = false
+        var from = 0
+        while (true) {
+            val first = firstAcquirable(1, 0, capacity - 1, from, leaveLimit)
+            if (first == -1 || first + span > laneCount) {
+                if (!purged && purgeDetached()) {
+                    // Try again with the lanes of detached danmakus freed
+                    purged = true
+                    from = 0
+                    continue
+                }
+                return -1
+            }
+            val blocked = firstBlocked(1, 0, capacity - 1, first, first + span - 1, leaveLimit)
+            if (blocked == -1) {
+                keysOf(danmaku, keys)
+                for (i in first until first + span) {
+                    occupants[i] = danmaku
+                    update(i, keys[0], keys[1])
+                }
+                danmaku.lane = first
+                danmaku.laneSpan = span
+                return start + first * laneHeight
+            }
+            from = blocked + 1
+        }
+    }
+
+    /**
+     * 释放弹道，也就是说这些弹道不再被[danmaku]占用了。已被其他弹幕接替的弹道保持不变。
+     * 返回是否释放成功。
+     */
+    fun release(danmaku: Danmaku): Boolean {
+        val first = danmaku.lane
+        if (first < 0) {
+            return false
+        }
+        var released = false
+        for (i in first until minOf(first + danmaku.laneSpan, laneCount)) {
+            if (occupants[i] === danmaku) {
+                occupants[i] = null
+                update(i, FREE, FREE)
+                released = true
+            }
+        }
+        danmaku.lane = -1
+        danmaku.laneSpan = 0
+        return released
+    }
+
+    /**
+     * Updates the keys of the lanes still occupied by [danmaku], e.g. after the container is resized or the duration
+     * of danmakus changed.
+     */
+    fun rekey(danmaku: T) {
+        val first = danmaku.lane
+        if (first < 0) {
+            return
+        }
+        keysOf(danmaku, keys)
+        for (i in first until minOf(first + danmaku.laneSpan, laneCount)) {
+            if (occupants[i] === danmaku) {
+                update(i, keys[0], keys[1])
+            }
+        }
+    }
+
+    /**
+     * Sets the height of each lane, or 0 to let the next acquired danmaku decide it. Existing lanes are dropped since
+     * they can't be mapped to the new ones.
+     */
+    fun setLaneHeight(height: Int) {
+        if (height < 0 || height == laneHeight) {
+            return
+        }
+        laneHeight = height
+        rebuild(0)
+    }
+
+    /**
+     * Sets the root range of this LaneAllocator. Lanes still inside the new range keep their occupants.
+     */
+    fun setRange(start: Int, end: Int) {
+        if (start == this.start && end == this.end) {
+            return
+        }
+        val kept = if (start == this.start) laneCount else 0
+        this.start = start
+        this.end = end
+        if (laneHeight != 0) {
+            rebuild(kept)
+        }
+    }
+
+    fun clear() {
+        rebuild(0)
+    }
+
+    private fun rebuild(keep: Int) {
+        val count = if (laneHeight == 0) 0 else maxOf(end - start, 0) / laneHeight
+        var cap = 1
+        while (cap < count) {
+            cap = cap shl 1
+        }
+        val oldOccupants = occupants
+        val oldCapacity = capacity
+        val oldEnter = enterKeys
+        val oldLeave = leaveKeys
+        laneCount = count
+        capacity = cap
+        occupants = arrayOfNulls(cap)
+        enterKeys = LongArray(cap)
+        leaveKeys = LongArray(cap)
+        minPending = LongArray(cap * 2)
+        minKey = LongArray(cap * 2)
+        maxKey = LongArray(cap * 2)
+        for (i in 0 until cap) {
+            if (i < count && i < keep && i < oldCapacity && oldOccupants[i] != null) {
+                occupants[i] = oldOccupants[i]
+                enterKeys[i] = oldEnter[i]
+                leaveKeys[i] = oldLeave[i]
+            } else if (i < count) {
+                enterKeys[i] = FREE
+                leaveKeys[i] = FREE
+            } else {
+                // padding, never acquirable
+                enterKeys[i] = BLOCKED
+                leaveKeys[i] = BLOCKED
+            }
+            setLeaf(i)
+        }
+        for (node in cap - 1 downTo 1) {
+            pull(node)
+        }
+        val kept = minOf(keep, count)
+        for (i in kept until oldOccupants.size) {
+            val occupant = oldOccupants[i] ?: continue
+            if (occupant.lane >= kept) {
+                // the occupant lost all its lanes
+                occupant.lane = -1
+                occupant.laneSpan = 0
+            }
+        }
+    }
+
+    /**
+     * Passes the enter keys up to [limit]. Each occupant is passed once, unless [limit] goes back.
+     */
+    private fun pass(limit: Long) {
+        if (limit < passedLimit) {
+            passedLimit = limit
+            for (i in 0 until capacity) {
+                setLeaf(i)
+            }
+            for (node in capacity - 1 downTo 1) {
+                pull(node)
+            }
+            return
+        }
+        passedLimit = limit
+        while (capacity > 0 && minPending[1] <= limit) {
+            var node = 1
+            while (node < capacity) {
+                node = node shl 1
+                if (minPending[node] > limit) {
+                    node++
+                }
+            }
+            refresh(node - capacity)
+        }
+    }
+
+    /**
+     * Frees the lanes still held by danmakus already detached, e.g. left by a container torn down without removing
+     * its children. Returns if any lane is freed.
+     */
+    private fun purgeDetached(): Boolean {
+        var purged = false
+        for (i in 0 until laneCount) {
+            val occupant = occupants[i] ?: continue
+            if (occupant.parent == null) {
+                occupants[i] = null
+                update(i, FREE, FREE)
+                occupant.lane = -1
+                occupant.laneSpan = 0
+                purged = true
+            }
+        }
+        return purged
+    }
+
+    /**
+     * Folds the keys of [lane] into its leaf.
+     */
+    private fun setLeaf(lane: Int) {
+        val leaf = capacity + lane
+        val enter = enterKeys[lane]
+        if (enter <= passedLimit) {
+            minPending[leaf] = BLOCKED
+            minKey[leaf] = leaveKeys[lane]
+            maxKey[leaf] = leaveKeys[lane]
+        } else {
+            minPending[leaf] = enter
+            minKey[leaf] = BLOCKED
+            maxKey[leaf] = BLOCKED
+        }
+    }
+
+    private fun pull(node: Int) {
+        val l = node shl 1
+        val r = l + 1
+        minPending[node] = minOf(minPending[l], minPending[r])
+        minKey[node] = minOf(minKey[l], minKey[r])
+        maxKey[node] = maxOf(maxKey[l], maxKey[r])
+    }
+
+    private fun update(lane: Int, enter: Long, leave: Long) {
+        enterKeys[lane] = enter
+        leaveKeys[lane] = leave
+        refresh(lane)
+    }
+
+    private fun refresh(lane: Int) {
+        setLeaf(lane)
+        var node = (capacity + lane) shr 1
+        while (node >= 1) {
+            pull(node)
+            node = node shr 1
+        }
+    }
+
+    /**
+     * Returns the first lane not before [from] whose folded key is within [leaveLimit], or -1.
+     */
+    private fun firstAcquirable(node: Int, lo: Int, hi: Int, from: Int, leaveLimit: Long): Int {
+        if (hi < from || minKey[node] > leaveLimit) {
+            return -1
+        }
+        if (lo == hi) {
+            return lo
+        }
+        val mid = (lo + hi) ushr 1
+        val left = firstAcquirable(node shl 1, lo, mid, from, leaveLimit)
+        if (left != -1) {
+            return left
+        }
+        return firstAcquirable((node shl 1) + 1, mid + 1, hi, from, leaveLimit)
+    }
+
+    /**
+     * Returns the first lane in [from, to] whose folded key exceeds [leaveLimit], or -1 if all of them are
+     * acquirable.
+     */
+    private fun firstBlocked(node: Int, lo: Int, hi: Int, from: Int, to: Int, leaveLimit: Long): Int {
+        if (hi < from || lo > to || maxKey[node] <= leaveLimit) {
+            return -1
+        }
+        if (lo == hi) {
+            return lo
+        }
+        val mid = (lo + hi) ushr 1
+        val left = firstBlocked(node shl 1, lo, mid, from, to, leaveLimit)
+        if (left != -1) {
+            return left
+        }
+        return firstBlocked((node shl 1) + 1, mid + 1, hi, from, to, leaveLimit)
+    }
+
+    override fun toString(): String {
+        val sb = StringBuilder("[")
+        for (i in 0 until laneCount) {
+            if (i > 0) sb.append(", ")
+            sb.append(occupants[i]).append(": ").append(start + i * laneHeight)
+        }
+        return sb.append("]").toString()
+    }
+}
@@ -1,13 +1,18 @@
 package top.littlefogcat.esus
 
+import android.annotation.SuppressLint
 import android.content.Context
 import android.util.AttributeSet
 import android.view.Choreographer
+import android.view.MotionEvent
+import android.view.Surface
 import android.view.SurfaceHolder
 import android.view.SurfaceView
 import top.littlefogcat.esus.view.ISurface
+import top.littlefogcat.esus.view.TouchEvent
 import top.littlefogcat.esus.view.ViewGroup
 import top.littlefogcat.esus.view.ViewRootImpl
+import top.littlefogcat.esus.view.util.FrameStats
 import top.littlefogcat.esus.widget.FrameLayout
 
 /**
@@ -24,15 +29,47 @@ open class EsusSurfaceView : SurfaceView, SurfaceHolder.Callback, ISurface {
     protected open var viewRootImpl: ViewRootImpl? = null
     open val rootView: ViewGroup = FrameLayout()
 
+    /**
+     * Whether the ESUS view tree is drawn by a [android.graphics.HardwareRenderer] on the RenderThread.
+     */
+    protected open val useRenderThread = false
+
+    /**
+     * Priority of this surface in the frame pass shared by all ESUS surfaces, higher first.
+     *
+     * @see top.littlefogcat.esus.view.EsusRenderer
+     */
+    protected open val renderPriority = 0
+
+    /**
+     * Frame rate the ESUS view tree is drawn at, 0 to follow the display. It's given to the system by
+     * [Surface.setFrameRate] as a hint, so that the display may stay at a lower refresh rate, and the render loop
+     * skips vsyncs to match. Animations are driven by [time], so their speed doesn't depend on it.
+     *
+     * Should be set in the main thread.
+     */
+    var frameRate = 0f
+        set(value) {
+            field = value
+            viewRootImpl?.targetFrameRate = value
+            applyFrameRate()
+        }
+
     protected open var frameTask = object : Choreographer.FrameCallback {
         override fun doFrame(frameTimeNanos: Long) {
-            time = frameTimeNanos / NANOS_PER_MILLIS
-            Choreographer.getInstance().postFrameCallback(this)
+            updateTime(frameTimeNanos)
+            postFrameTask()
         }
     }
 
     companion object {
         const val NANOS_PER_MILLIS = 1_000_000
+
+        /**
+         * Part of a frame at [frameRate] that [frameTask] is delayed by. A delayed callback runs on the first vsync
+         * after the delay, so it must be shorter than a frame, and longer than one vsync of a faster display.
+         */
+        private const val FRAME_TASK_DELAY_RATIO = 0.75f
     }
 
     constructor(context: Context?) : super(context)
@@ -44,8 +81,11 @@ open class EsusSurfaceView : SurfaceView, SurfaceHolder.Callback, ISurface {
     }
 
     override fun surfaceCreated(holder: SurfaceHolder) {
-        viewRootImpl = ViewRootImpl(this)
-        Choreographer.getInstance().postFrameCallback(frameTask)
+        viewRootImpl = ViewRootImpl(this, useRenderThread = useRenderThread, priority = renderPriority).also {
+            it.targetFrameRate = frameRate
+        }
+        applyFrameRate()
+        postFrameTask()
     }
 
     override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
@@ -58,4 +98,85 @@ open class EsusSurfaceView : SurfaceView, SurfaceHolder.Callback, ISurface {
         viewRootImpl?.die()
         Choreographer.getInstance().removeFrameCallback(frameTask)
     }
+
+    /**
+     * Forwards touch events to ESUS if [rootView] is touchable. Hit-testing happens later in the ESUS main thread,
+     * so all events are consumed here.
+     */
+    @SuppressLint("ClickableViewAccessibility")
+    override fun onTouchEvent(event: MotionEvent): Boolean {
+        val viewRootImpl = viewRootImpl
+        if (viewRootImpl == null || !rootView.touchable) {
+            return super.onTouchEvent(event)
+        }
+        val action = when (event.actionMasked) {
+            MotionEvent.ACTION_DOWN -> TouchEvent.ACTION_DOWN
+            MotionEvent.ACTION_UP -> TouchEvent.ACTION_UP
+            MotionEvent.ACTION_MOVE -> TouchEvent.ACTION_MOVE
+            MotionEvent.ACTION_CANCEL -> TouchEvent.ACTION_CANCEL
+            else -> return true
+        }
+        viewRootImpl.dispatchTouchEvent(action, event.x, event.y)
+        return true
+    }
+
+    private fun applyFrameRate() {
+        val surface = holder.surface
+        if (surface == null || !surface.isValid) {
+            return
+        }
+        // Don't make the display switch modes visibly for an overlay
+        surface.setFrameRate(
+            frameRate,
+            Surface.FRAME_RATE_COMPATIBILITY_DEFAULT,
+            Surface.CHANGE_FRAME_RATE_ONLY_IF_SEAMLESS
+        )
+    }
+
+    /**
+     * Posts [frameTask] to the main thread's Choreographer, on the next vsync if [frameRate] follows the display, or
+     * else on the first vsync of the next frame at [frameRate], so that the clock isn't read on the vsyncs the render
+     * loop skips.
+     */
+    private fun postFrameTask() {
+        val choreographer = Choreographer.getInstance()
+        val frameRate = frameRate
+        if (frameRate > 0f) {
+            choreographer.postFrameCallbackDelayed(frameTask, (1000 / frameRate * FRAME_TASK_DELAY_RATIO).toLong())
+        } else {
+            choreographer.postFrameCallback(frameTask)
+        }
+    }
+
+    /**
+     * Updates [time] to the clock at [frameTimeNanos], on each frame of the main thread at [frameRate], and when the
+     * render loop wakes from idle.
+     */
+    protected open fun updateTime(frameTimeNanos: Long) {
+        time = frameTimeNanos / NANOS_PER_MILLIS
+    }
+
+    override fun onWake(timeNanos: Long) {
+        updateTime(timeNanos)
+    }
+
+    override fun onIdle(idle: Boolean) {
+        // Frame callbacks must be posted to the Choreographer of main thread
+        post {
+            val choreographer = Choreographer.getInstance()
+            choreographer.removeFrameCallback(frameTask)
+            if (!idle && viewRootImpl != null) {
+                postFrameTask()
+            }
+        }
+    }
+
+    /** Count of frames drawn by ESUS **/
+    val activeFrames: Long get() = viewRootImpl?.activeFrames ?: 0
+
+    /** Estimated count of frames skipped by ESUS while idle **/
+    val idleFrames: Long get() = viewRootImpl?.idleFrames ?: 0
+
+    /** Timings of the ESUS render loop, null if the surface is not created **/
+    val frameStats: FrameStats? get() = viewRootImpl?.stats
 }
@@ -0,0 +1,137 @@
+package top.littlefogcat.esus.view
+
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.Trace
+import android.view.Choreographer
+
+/**
+ * The render loop shared by all [ViewRootImpl]s: one thread, and one vsync callback.
+ *
+ * The thread is started when the first ViewRootImpl is created, and quits when the last one dies. Roots in
+ * [ViewRootImpl.MODE_MANUAL] are not added, since they are driven by their callers. On each vsync, the
+ * roots scheduled for a frame are traversed in one pass, in the order of [ViewRootImpl.priority]. When the pass runs
+ * over the interval of one vsync, roots of lower priority than the first one are put off to the next vsync, so that
+ * e.g. a HUD doesn't make the danmakus drop frames.
+ *
+ * [requestVsync] should only be called in the render thread.
+ */
+object EsusRenderer {
+    private const val THREAD_NAME = "SUS:Main"
+    private const val DEFAULT_FRAME_INTERVAL_NANOS = 16_666_667L
+    private const val MAX_FRAME_INTERVAL_NANOS = 50_000_000L
+
+    private val lock = Any()
+    private var thread: HandlerThread? = null
+
+    /**
+     * Sorted by priority descending. Replaced on each change, so that the render thread reads it without locking.
+     */
+    @Volatile
+    private var roots = emptyArray<ViewRootImpl>()
+
+    /* Only used in the render thread */
+    private var vsyncRequested = false
+    private var lastFrameTimeNanos = 0L
+
+    /**
+     * Interval of the vsyncs of the display, measured between the last two frames. Used by all roots, e.g. to
+     * skip vsyncs for their target frame rate. Written in the render thread.
+     */
+    @Volatile
+    internal var frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS
+        private set
+
+    private val frameCallback = Choreographer.FrameCallback { doFrame(it) }
+
+    /** Count of ViewRootImpls alive **/
+    val rootCount: Int get() = roots.size
+
+    /**
+     * Adds [root] to the render loop, starting the render thread if it's the first one. Can be called from any
+     * thread.
+     *
+     * @return the looper of the render thread.
+     */
+    internal fun register(root: ViewRootImpl): Looper {
+        synchronized(lock) {
+            val thread = thread ?: HandlerThread(THREAD_NAME).also {
+                it.start()
+                thread = it
+            }
+            val roots = roots.copyOf(roots.size + 1)
+            var i = roots.size - 1
+            // Stable, so that roots of the same priority are traversed in creation order
+            while (i > 0 && roots[i - 1]!!.priority < root.priority) {
+                roots[i] = roots[i - 1]
+                i--
+            }
+            roots[i] = root
+            @Suppress("UNCHECKED_CAST")
+            this.roots = roots as Array<ViewRootImpl>
+            return thread.looper
+        }
+    }
+
+    /**
+     * Removes [root] from the render loop, and quits the render thread if it's the last one. Called in the render
+     * thread when [root] dies.
+     */
+    internal fun unregister(root: ViewRootImpl) {
+        synchronized(lock) {
+            val roots = roots.filter { it !== root }.toTypedArray()
+            this.roots = roots
+            if (roots.isNotEmpty()) {
+                return
+            }
+            if (vsyncRequested) {
+                Choreographer.getInstance().removeFrameCallback(frameCallback)
+                vsyncRequested = false
+            }
+            lastFrameTimeNanos = 0L
+            thread?.quit()
+            thread = null
+        }
+    }
+
+    /**
+     * Posts the vsync callback if it's not posted yet. The scheduled roots are traversed on the next vsync.
+     */
+    internal fun requestVsync() {
+        if (!vsyncRequested) {
+            vsyncRequested = true
+            Choreographer.getInstance().postFrameCallback(frameCallback)
+        }
+    }
+
+    private fun doFrame(frameTimeNanos: Long) {
+        vsyncRequested = false
+        if (lastFrameTimeNanos != 0L) {
+            val interval = frameTimeNanos - lastFrameTimeNanos
+            if (interval in 1 until MAX_FRAME_INTERVAL_NANOS) {
+                frameIntervalNanos = interval
+            }
+        }
+        lastFrameTimeNanos = frameTimeNanos
+        val roots = roots
+        if (roots.isEmpty()) {
+            return
+        }
+        Trace.beginSection("EsusRenderer#doFrame")
+        val start = System.nanoTime()
+        val topPriority = roots[0].priority
+        for (i in roots.indices) {
+            val root = roots[i]
+            if (!root.isFrameScheduled) {
+                continue
+            }
+            if (root.priority < topPriority && System.nanoTime() - start > frameIntervalNanos) {
+                // Out of time, leave it to the next vsync
+                root.deferFrame()
+                continue
+            }
+            root.doFrame(frameTimeNanos)
+        }
+        Trace.endSection()
+    }
+}
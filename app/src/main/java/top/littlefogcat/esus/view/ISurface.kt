@@ -24,4 +24,22 @@ interface ISurface {
     fun getHolder(): SurfaceHolder
 
     fun getContext(): Context
+
+    /**
+     * Called when the render loop of [ViewRootImpl] parks itself because the view tree is idle, or restarts. The
+     * surface may stop updating [time] while idle. May be called from any thread.
+     */
+    fun onIdle(idle: Boolean) {}
+
+    /**
+     * Called by [ViewRootImpl.wake] before the first traversal after parked, with [System.nanoTime] at that moment,
+     * so that a surface which stopped updating [time] while idle brings it up to date. May be called from any thread.
+     */
+    fun onWake(timeNanos: Long) {}
+
+    /**
+     * Called in the ESUS main thread when the first frame of the view tree is posted, with [System.nanoTime] at
+     * that moment.
+     */
+    fun onFirstFrame(timeNanos: Long) {}
 }
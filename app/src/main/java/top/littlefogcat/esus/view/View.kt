@@ -4,6 +4,9 @@ import android.content.Context
 import android.graphics.*
 import android.os.Handler
 import androidx.annotation.IntDef
+import top.littlefogcat.esus.widget.TextMeasureCache
+import kotlin.math.ceil
+import kotlin.math.floor
 
 /**
  * Base display unit in *Easy Surface UI System*.
@@ -45,14 +48,24 @@ open class View {
 
     /* --- 由于Canvas硬伤，需要一个绝对坐标来绘制 --- */
     open val rawX: Float
-        get() = if (parent !is ViewGroup) 0f else {
-            val parent = parent as ViewGroup
-            x + parent.rawX
+        get() {
+            var rawX = 0f
+            var view = this
+            while (true) {
+                val parent = view.parent as? ViewGroup ?: return rawX
+                rawX += view.x
+                view = parent
+            }
         }
     open val rawY: Float
-        get() = if (parent !is ViewGroup) 0f else {
-            val parent = parent as ViewGroup
-            y + parent.rawY
+        get() {
+            var rawY = 0f
+            var view = this
+            while (true) {
+                val parent = view.parent as? ViewGroup ?: return rawY
+                rawY += view.y
+                view = parent
+            }
         }
 
     var layoutParams: ViewGroup.LayoutParams? = null
@@ -70,6 +83,12 @@ open class View {
      * 0为完全透明，255为完全不透明。
      */
     var alpha = 255
+        set(value) {
+            if (field != value) {
+                field = value
+                invalidate()
+            }
+        }
 
     var backgroundColor = Color.TRANSPARENT
 
@@ -78,6 +97,9 @@ open class View {
     protected val TAG = javaClass.simpleName
     var parent: ViewParent? = null
         internal set
+
+    /** Index in [ViewGroup.children] of the parent, -1 if no parent **/
+    internal var indexInParent = -1
     val context: Context?
         get() = attachInfo?.context
     protected var attachInfo: AttachInfo? = null
@@ -121,6 +143,118 @@ open class View {
     open fun onLayout(l: Int, t: Int, r: Int, b: Int) {
     }
 
+    /* ===================== update ===================== */
+
+    /**
+     * Bounds in surface coordinates where this view is drawn, empty if it's not drawn.
+     */
+    internal val drawnBounds = Rect()
+
+    /**
+     * Pixels drawn outside the bounds of this view, e.g. text stroke.
+     */
+    protected open val drawingOutset = 0
+
+    /**
+     * Called on each frame before the canvas is locked. Do the transform here, so that the damaged region can be
+     * known before drawing.
+     */
+    open fun onUpdate(time: Long) {}
+
+    /**
+     * Updates this view and reports the region damaged since last frame to [AttachInfo.dirty].
+     *
+     * @param parentX x of the parent in surface coordinates
+     * @param parentY y of the parent in surface coordinates
+     */
+    open fun dispatchUpdate(time: Long, parentX: Float, parentY: Float) {
+        onUpdate(time)
+        val ai = attachInfo ?: return
+        val left = parentX + x
+        val top = parentY + y
+        val outset = drawingOutset
+        val l = floor(left).toInt() - outset
+        val t = floor(top).toInt() - outset
+        val r = ceil(left + width).toInt() + outset
+        val b = ceil(top + height).toInt() + outset
+        val bounds = drawnBounds
+        if (bounds.left != l || bounds.top != t || bounds.right != r || bounds.bottom != b) {
+            ai.dirty.union(bounds)
+            bounds.set(l, t, r, b)
+            ai.dirty.union(bounds)
+        }
+        if (hasContent()) {
+            ai.contentBounds.union(bounds)
+        }
+    }
+
+    /**
+     * Returns whether this view draws anything by itself, not counting its children.
+     */
+    protected open fun hasContent(): Boolean = true
+
+    /**
+     * Marks the region this view was drawn as damaged, and forgets it. Called when this view is no longer drawn.
+     */
+    internal fun clearDrawnBounds() {
+        attachInfo?.dirty?.union(drawnBounds)
+        drawnBounds.setEmpty()
+    }
+
+    /**
+     * Marks this view to be redrawn in the next frame, even if it's not moved.
+     */
+    fun invalidate() {
+        displayListDirty = true
+        attachInfo?.dirty?.union(drawnBounds)
+    }
+
+    /* ===================== render node ===================== */
+
+    /**
+     * Whether this view records its content into a [RenderNode] on hardware accelerated canvas. The node is recorded
+     * once and re-recorded only after [invalidate] or resizing; moving the view only changes the translation of the
+     * node. Should only be enabled for views whose content rarely changes while moving, and without children.
+     */
+    protected open val useRenderNode = false
+
+    private var renderNode: RenderNode? = null
+    private var displayListDirty = true
+
+    /**
+     * Drops the display list recorded, e.g. when this view is going to be recycled.
+     */
+    protected fun discardDisplayList() {
+        renderNode?.discardDisplayList()
+        displayListDirty = true
+    }
+
+    private fun drawRenderNode(canvas: Canvas, parent: ViewParent?, time: Long) {
+        val node = renderNode ?: RenderNode(TAG).also {
+            // Content such as text stroke may be drawn outside the bounds
+            it.setClipToBounds(false)
+            renderNode = it
+        }
+        val w = width
+        val h = height
+        if (displayListDirty || !node.hasDisplayList() || node.width != w || node.height != h) {
+            node.setPosition(0, 0, w, h)
+            val recordingCanvas = node.beginRecording(w, h)
+            try {
+                drawBackground(recordingCanvas)
+                onDraw(recordingCanvas, parent, time)
+                dispatchDraw(recordingCanvas)
+                drawForeground(recordingCanvas)
+            } finally {
+                node.endRecording()
+            }
+            displayListDirty = false
+        }
+        node.setTranslationX(x)
+        node.setTranslationY(y)
+        canvas.drawRenderNode(node)
+    }
+
     open fun preDraw(canvas: Canvas, parent: ViewParent?, time: Long) {}
 
     /**
@@ -131,7 +265,10 @@ open class View {
      */
     fun draw(canvas: Canvas, parent: ViewParent?, time: Long) {
         preDraw(canvas, parent, time)
-        if (getVisibility() == VISIBLE) {
+        if (getVisibility() == VISIBLE && useRenderNode && canvas.isHardwareAccelerated) {
+            /* --- Replay the recorded content at current position --- */
+            drawRenderNode(canvas, parent, time)
+        } else if (getVisibility() == VISIBLE) {
             /* --- Pre-draw --- */
             canvas.save()
             canvas.translate(x, y)
@@ -151,7 +288,7 @@ open class View {
 
     /**
      * 覆写onDraw绘制。
-     * 与Android View不同，这个回调每帧都会调用。
+     * 与Android View不同，这个回调每帧都会调用；但如果[useRenderNode]生效，只在需要重新录制时调用。
      */
     open fun onDraw(canvas: Canvas, parent: ViewParent?, time: Long) {
     }
@@ -163,9 +300,8 @@ open class View {
 
     open fun drawBackground(canvas: Canvas) {
         if (backgroundColor != Color.TRANSPARENT) {
-            val rect = Rect(0, 0, width, height)
             paint.color = backgroundColor
-            canvas.drawRect(rect, paint)
+            canvas.drawRect(0f, 0f, width.toFloat(), height.toFloat(), paint)
         }
     }
 
@@ -179,15 +315,31 @@ open class View {
         parent?.requestLayout()
     }
 
+    /**
+     * Returns whether this view has nothing to update in the following frames. If the root view is idle, the render
+     * loop will be parked until [ViewRootImpl.wake] is called.
+     */
+    open fun isIdle(): Boolean = false
+
     /* ===================== Attach ===================== */
     class AttachInfo internal constructor(
         val viewRootImpl: ViewRootImpl,
-        val handler: Handler
+        /** Handler of the ESUS main thread, null if the root is driven manually **/
+        val handler: Handler?
     ) {
         var rootView: View? = null
         var drawingTime: Long = 0
         var forceLayout = false
 
+        /** Region damaged since last frame drawn, in surface coordinates **/
+        val dirty = Rect()
+
+        /** Union of bounds of all views drawing content in this frame **/
+        val contentBounds = Rect()
+
+        /** Text measurements shared by all text views in this surface **/
+        val textMeasureCache = TextMeasureCache()
+
         /**
          * No context in constructor, so save it here
          */
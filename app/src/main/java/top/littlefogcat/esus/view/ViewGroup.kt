@@ -1,6 +1,7 @@
 package top.littlefogcat.esus.view
 
 import android.graphics.Canvas
+import android.graphics.Color
 
 /**
  * Corresponds to [android.view.ViewGroup].
@@ -26,6 +27,24 @@ abstract class ViewGroup : View(), ViewParent {
 
     abstract override fun onLayout(l: Int, t: Int, r: Int, b: Int)
 
+    override fun dispatchUpdate(time: Long, parentX: Float, parentY: Float) {
+        super.dispatchUpdate(time, parentX, parentY)
+        val x = parentX + x
+        val y = parentY + y
+        val visible = isVisible
+        allChildren { child ->
+            if (visible && child.isVisible) {
+                child.dispatchUpdate(time, x, y)
+            } else if (!child.drawnBounds.isEmpty) {
+                child.clearDrawnBounds()
+            }
+        }
+        // Batch of removal of this frame
+        compactChildren()
+    }
+
+    override fun hasContent(): Boolean = backgroundColor != Color.TRANSPARENT
+
     override fun dispatchDraw(canvas: Canvas) {
         super.dispatchDraw(canvas)
         if (childCount == 0 || !isVisible) {
@@ -53,23 +72,40 @@ abstract class ViewGroup : View(), ViewParent {
 
     /* ===================== Resolve children ===================== */
 
+    /**
+     * Children in drawing order. Removed children leave holes, which are compacted once per frame by
+     * [compactChildren], so that removal is O(1) and the order never changes.
+     */
     protected var children = arrayOfNulls<View?>(ARRAY_INITIAL_CAPACITY)
         private set
+
+    /** Count of children, not counting holes **/
     protected var childCount = 0
         private set
 
+    /** Count of slots used in [children], including holes **/
+    protected var slotCount = 0
+        private set
+
+    private var holes = 0
+
+    /** Children to be removed at the end of the update pass, see [removeViewLater] **/
+    private val pendingRemovals = ArrayList<View>()
+
     fun getChildAt(index: Int): View? {
         if (index < 0 || index >= childCount) {
             return null
         }
-        return children[index]
+        return children[slotOf(index)]
     }
 
     fun addView(view: View) {
         requestLayout()
 
-        ensureCapacity(childCount + 1)
-        children[childCount++] = view
+        ensureCapacity(slotCount + 1)
+        view.indexInParent = slotCount
+        children[slotCount++] = view
+        childCount++
 
         attachInfo?.let {
             view.dispatchAttached(it)
@@ -82,10 +118,9 @@ abstract class ViewGroup : View(), ViewParent {
     open fun onViewAdded(view: View) {}
 
     fun removeView(view: View) {
-        for (i in 0 until childCount) {
-            if (children[i] == view) {
-                return removeViewInner(i, view)
-            }
+        val index = view.indexInParent
+        if (index in 0 until slotCount && children[index] === view) {
+            removeViewInner(index, view)
         }
     }
 
@@ -93,16 +128,27 @@ abstract class ViewGroup : View(), ViewParent {
         if (index < 0 || index >= childCount) {
             return
         }
-        val view = children[index] ?: return
-        removeViewInner(index, view)
+        val slot = slotOf(index)
+        val view = children[slot] ?: return
+        removeViewInner(slot, view)
+    }
+
+    /**
+     * Removes [view] at the end of the update pass of this frame, together with other views removed in this frame.
+     * Can be called while the children are being updated.
+     */
+    fun removeViewLater(view: View) {
+        pendingRemovals.add(view)
     }
 
     private fun removeViewInner(index: Int, view: View) {
+        view.clearDrawnBounds()
         view.parent = null
-        if (index != childCount - 1) {
-            System.arraycopy(children, index + 1, children, index, childCount - index - 1)
-        }
-        children[--childCount] = null
+        view.indexInParent = -1
+        // Leave a hole, compacted later
+        children[index] = null
+        childCount--
+        holes++
         if (view.isAttached()) {
             view.dispatchDetached()
         }
@@ -111,13 +157,59 @@ abstract class ViewGroup : View(), ViewParent {
 
     open fun onViewRemoved(view: View) {}
 
+    /**
+     * Processes the views removed by [removeViewLater], and closes the holes left by removed children. Order of the
+     * children is kept.
+     */
+    private fun compactChildren() {
+        if (pendingRemovals.isNotEmpty()) {
+            for (i in 0 until pendingRemovals.size) {
+                removeView(pendingRemovals[i])
+            }
+            pendingRemovals.clear()
+        }
+        if (holes == 0) {
+            return
+        }
+        val children = children
+        var j = 0
+        for (i in 0 until slotCount) {
+            val child = children[i] ?: continue
+            if (i != j) {
+                children[j] = child
+                child.indexInParent = j
+            }
+            j++
+        }
+        for (i in j until slotCount) {
+            children[i] = null
+        }
+        slotCount = j
+        holes = 0
+    }
+
+    /**
+     * Returns the slot of the child at [index], skipping holes. Not compacting, since it may be called while
+     * iterating the children.
+     */
+    private fun slotOf(index: Int): Int {
+        if (holes == 0) {
+            return index
+        }
+        var count = 0
+        for (i in 0 until slotCount) {
+            if (children[i] != null && count++ == index) {
+                return i
+            }
+        }
+        return -1
+    }
+
     private fun ensureCapacity(capacity: Int) {
         if (children.size >= capacity) {
             return
         }
-        val children = this.children
-        this.children = arrayOfNulls(children.size + ARRAY_INITIAL_CAPACITY)
-        System.arraycopy(children, 0, this.children, 0, children.size)
+        children = children.copyOf(maxOf(capacity, children.size * 2))
     }
 
     /* ===================== dispatch events ===================== */
@@ -139,7 +231,7 @@ abstract class ViewGroup : View(), ViewParent {
     override fun dispatchTouchEvent(e: TouchEvent): Boolean {
         val ex = e.x
         val ey = e.y
-        for (i in childCount - 1 downTo 0) {
+        for (i in slotCount - 1 downTo 0) {
             val child = children[i] ?: continue
             if (child.hasActionDown) {
                 e.x = ex - child.x
@@ -166,8 +258,12 @@ abstract class ViewGroup : View(), ViewParent {
     }
 
     /* ===================== helper ===================== */
+    /**
+     * Iterates the children in drawing order. Children may be removed or added while iterating; added ones are
+     * not iterated.
+     */
     protected inline fun allChildren(action: (View) -> Unit) {
-        for (i in 0 until childCount) {
+        for (i in 0 until slotCount) {
             action(children[i] ?: continue)
         }
     }
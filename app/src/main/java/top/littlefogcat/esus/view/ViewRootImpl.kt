@@ -1,9 +1,15 @@
 package top.littlefogcat.esus.view
 
 import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.HardwareRenderer
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.Rect
+import android.graphics.RenderNode
 import android.os.*
-import android.view.Choreographer
-import top.littlefogcat.esus.view.util.Timing
+import top.littlefogcat.esus.view.util.FrameStats
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * A ViewRootImpl must be create to hold the ESUS view tree.
@@ -20,10 +26,38 @@ import top.littlefogcat.esus.view.util.Timing
  * Use [setView] to set the root view.
  * The root view represents the root of the view tree, and is typically a [ViewGroup].
  *
+ * ### Idle
+ *
+ * When the root view reports [View.isIdle] after a frame drawn, the render loop parks itself and [ISurface.onIdle]
+ * is called. Use [wake] to restart it, e.g. when new content arrives. [requestLayout] also wakes the loop.
+ *
+ * ### Damage
+ *
+ * Views are updated by [View.dispatchUpdate] before the canvas is locked, and report the regions changed since last
+ * frame to [View.AttachInfo.dirty]. Frames without damage are not drawn. In software mode only the damaged region is
+ * locked and redrawn; in hardware mode the surface is cleared and drawing is clipped to the content.
+ * Set [showDamage] to draw the damaged regions for debugging.
+ *
+ * ### Render thread
+ *
+ * If `useRenderThread` is set, the surface is not locked. Instead, the view tree is recorded into a root
+ * [RenderNode] and submitted through a [HardwareRenderer], which draws it on the RenderThread. Views with
+ * [View.useRenderNode] are recorded once and only moved on following frames, so most per-frame drawing work is
+ * moved off the ESUS main thread.
+ *
+ * ### Render loop
+ *
+ * All ViewRootImpls run on the one thread of [EsusRenderer], and share its vsync callback. On each vsync, the roots
+ * scheduled for a frame are traversed in one pass, in the order of [priority]. A root may traverse only every
+ * [frameRateDivisor] vsyncs, or keep to [targetFrameRate].
+ *
+ * In [MODE_MANUAL], the root is not added to the render loop and has no thread. The thread calling [onFrame] is its
+ * ESUS main thread, where each call traverses the view tree once, and touch events and [die] are handled.
+ *
  * ### Destroy
  *
- * Use [die] to destroy the ViewRootImpl when it is no longer needed. This is important since there is a background
- * thread running and may lead to memory leak.
+ * Use [die] to destroy the ViewRootImpl when it is no longer needed. This is important since the render thread is
+ * kept running until the last ViewRootImpl dies, and may lead to memory leak.
  *
  * ### Sample
  * ```
@@ -81,11 +115,13 @@ class ViewRootImpl(
     var surface: ISurface?,
     private var mode: Int = MODE_CHOREOGRAPHER, // todo
     private val useHardwareAccelerateIfPossible: Boolean = true,
+    private val useRenderThread: Boolean = false,
+    /** Order in the frame pass of [EsusRenderer], higher first **/
+    val priority: Int = 0,
 ) : ViewParent {
 
     private var view: View? = null
     private var attachInfo: View.AttachInfo? = null
-    private val frameTask: FrameTask
 
     private var layoutRequest = true
     private var traversalScheduled = false
@@ -96,56 +132,164 @@ class ViewRootImpl(
     private var destroy = false
 
     /**
-     * The main thread of the surface UI system.
-     * Use single-thread to ensure consistency.
+     * Whether the render loop is parked because the view tree is idle.
+     */
+    private val parked = AtomicBoolean(false)
+    private var parkedTimeNanos = 0L
+
+    /** Vsync time of the frame being traversed, 0 if the traversal is not started by a vsync **/
+    private var frameTimeNanos = 0L
+
+    /** Count of frames drawn **/
+    @Volatile
+    var activeFrames = 0L
+        private set
+
+    /** Estimated count of frames skipped while the render loop is parked **/
+    @Volatile
+    var idleFrames = 0L
+        private set
+
+    val isParked: Boolean get() = parked.get()
+
+    /**
+     * Max frames per second of the render loop in [MODE_CHOREOGRAPHER], 0 to traverse on every vsync. Vsyncs coming
+     * sooner than the interval of this rate are skipped, e.g. every other one at 60 on a 120Hz display. Can be set
+     * from any thread.
+     */
+    @Volatile
+    var targetFrameRate = 0f
+        set(value) {
+            field = value
+            stats.targetFrameRate = value
+        }
+
+    /**
+     * Traverses only on every this many vsyncs in [MODE_CHOREOGRAPHER], e.g. 2 for 60fps on a 120Hz display.
+     * Can be set from any thread.
+     */
+    @Volatile
+    var frameRateDivisor = 1
+        set(value) {
+            field = maxOf(value, 1)
+            stats.frameRateDivisor = field
+        }
+
+    /** Vsync time of the last frame traversed, 0 if none since parked **/
+    private var lastTraversalFrameNanos = 0L
+
+    /** Count of vsyncs this root was scheduled for **/
+    private var vsyncCount = 0L
+
+    internal val isFrameScheduled: Boolean get() = traversalScheduled && mode == MODE_CHOREOGRAPHER
+
+    /**
+     * Timings of the render loop, recorded without locks. Can be read from any thread.
+     */
+    val stats = FrameStats()
+
+    /**
+     * Draws the damaged region of each frame, for debugging.
      */
-    private val susMainThread: HandlerThread
-    private val handler: Handler
-    private val choreographer: Choreographer get() = Choreographer.getInstance()
+    var showDamage = false
+
+    private var lastWidth = -1
+    private var lastHeight = -1
+    private val lastDamage = Rect()
+    private val damagePaint by lazy {
+        Paint().apply {
+            style = Paint.Style.STROKE
+            strokeWidth = DAMAGE_STROKE_WIDTH
+            color = Color.RED
+        }
+    }
+
+    /** Reused for all touch events, only used in the ESUS main thread **/
+    private val touchEvent = TouchEvent()
+
+    private var renderer: HardwareRenderer? = null
+    private val rootNode by lazy { RenderNode(TAG) }
+
+    /**
+     * Handler of the main thread of the surface UI system, which is the thread of [EsusRenderer] shared by all
+     * ViewRootImpls. Use single-thread to ensure consistency. Null in [MODE_MANUAL].
+     */
+    private val handler: Handler?
 
     companion object {
         const val MSG_TRAVERSE = 1
         const val MSG_DESTROY = 2
         const val MSG_LAYOUT_REQUEST = 3
 
+        /** Touch events use [MSG_TOUCH] + [TouchEvent.actionType] **/
+        const val MSG_TOUCH = 16
+
         const val MODE_CHOREOGRAPHER = 1
-        const val MODE_THREAD = 1
+        const val MODE_THREAD = 2
         const val MODE_MANUAL = 3
 
         const val FRAME_DELAY = 16L
+        private const val NANOS_PER_SECOND = 1_000_000_000f
+        private const val DAMAGE_STROKE_WIDTH = 4f
 
         const val TAG = "ViewRootImpl"
     }
 
-    private inner class FrameTask : Choreographer.FrameCallback {
-        override fun doFrame(frameTimeNanos: Long) {
-            // do not send message
-            Timing.start("doTraversals", true)
-            doTraversals()
-            Timing.end()
+    /**
+     * Called by [EsusRenderer] on a vsync this root is scheduled for.
+     */
+    internal fun doFrame(frameTimeNanos: Long) {
+        this.frameTimeNanos = frameTimeNanos
+        if (++vsyncCount % frameRateDivisor != 0L || shouldSkip(frameTimeNanos)) {
+            stats.skippedFrames.incrementAndGet()
+            EsusRenderer.requestVsync()
+            return
         }
+        lastTraversalFrameNanos = frameTimeNanos
+        // do not send message
+        doTraversals()
+    }
+
+    /**
+     * Puts this frame off to the next vsync, since roots of higher priority used up this one. Called by
+     * [EsusRenderer] instead of [doFrame].
+     */
+    internal fun deferFrame() {
+        stats.deferredFrames.incrementAndGet()
+        EsusRenderer.requestVsync()
+    }
+
+    /**
+     * Returns whether the vsync at [frameTimeNanos] comes too soon for [targetFrameRate]. Half a vsync is
+     * tolerated, so that a rate matching the display never skips.
+     */
+    private fun shouldSkip(frameTimeNanos: Long): Boolean {
+        val rate = targetFrameRate
+        if (rate <= 0f || lastTraversalFrameNanos == 0L) {
+            return false
+        }
+        val minInterval = (NANOS_PER_SECOND / rate).toLong()
+        return frameTimeNanos - lastTraversalFrameNanos + EsusRenderer.frameIntervalNanos / 2 < minInterval
     }
 
     protected inner class ViewRootHandler(looper: Looper) : Handler(looper) {
         override fun handleMessage(msg: Message) {
             when (msg.what) {
                 MSG_TRAVERSE -> {
-                    Timing.start("doTraversals-handler", true)
                     doTraversals()
-                    Timing.end()
                 }
                 MSG_DESTROY -> {
                     doDie()
                 }
+                in MSG_TOUCH..MSG_TOUCH + TouchEvent.ACTION_CANCEL -> {
+                    doTouchEvent(msg.what - MSG_TOUCH, Float.fromBits(msg.arg1), Float.fromBits(msg.arg2))
+                }
             }
         }
     }
 
     init {
-        frameTask = FrameTask()
-        susMainThread = HandlerThread("SUS:Main")
-        susMainThread.start()
-        handler = ViewRootHandler(susMainThread.looper)
+        handler = if (mode == MODE_MANUAL) null else ViewRootHandler(EsusRenderer.register(this))
     }
 
     fun setView(root: View) {
@@ -172,11 +316,102 @@ class ViewRootImpl(
         }
     }
 
+    private fun performUpdate(ai: View.AttachInfo, time: Long) {
+        ai.contentBounds.setEmpty()
+        view?.dispatchUpdate(time, 0f, 0f)
+    }
+
     private fun performDraw(canvas: Canvas, time: Long) {
         attachInfo?.drawingTime = time
         view?.draw(canvas, this, time)
     }
 
+    private fun draw(surface: ISurface, ai: View.AttachInfo, time: Long) {
+        val damage = ai.dirty
+        // Erase the damage drawn last frame
+        damage.union(lastDamage)
+        if (useRenderThread) {
+            drawWithRenderer(surface, ai, time)
+            return
+        }
+        val holder = surface.getHolder()
+        var start = System.nanoTime()
+        val canvas = if (useHardwareAccelerateIfPossible) {
+            holder.lockHardwareCanvas()
+        } else {
+            // The dirty region may be expanded by the surface
+            holder.lockCanvas(damage)
+        }
+        stats.lockCanvas.record(System.nanoTime() - start)
+        if (canvas == null) {
+            // Keep the damage for next frame
+            return
+        }
+        // Software canvas is clipped to the damage, and hardware canvas is not preserved between frames
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR)
+        if (useHardwareAccelerateIfPossible) {
+            canvas.clipRect(ai.contentBounds)
+        }
+        start = System.nanoTime()
+        performDraw(canvas, time)
+        if (showDamage) {
+            canvas.drawRect(damage, damagePaint)
+            lastDamage.set(damage)
+        } else {
+            lastDamage.setEmpty()
+        }
+        stats.draw.record(System.nanoTime() - start)
+        start = System.nanoTime()
+        holder.unlockCanvasAndPost(canvas)
+        stats.post.record(System.nanoTime() - start)
+        activeFrames++
+        if (activeFrames == 1L) {
+            surface.onFirstFrame(System.nanoTime())
+        }
+        damage.setEmpty()
+    }
+
+    /**
+     * Records the view tree into [rootNode] and lets the RenderThread draw it.
+     */
+    private fun drawWithRenderer(surface: ISurface, ai: View.AttachInfo, time: Long) {
+        val damage = ai.dirty
+        val renderer = renderer ?: HardwareRenderer().also {
+            it.setContentRoot(rootNode)
+            // The renderer clears the surface to transparent before each frame
+            it.isOpaque = false
+            it.setSurface(surface.getHolder().surface)
+            renderer = it
+        }
+        val w = surface.w
+        val h = surface.h
+        rootNode.setPosition(0, 0, w, h)
+        var start = System.nanoTime()
+        val canvas = rootNode.beginRecording(w, h)
+        try {
+            canvas.clipRect(ai.contentBounds)
+            performDraw(canvas, time)
+            if (showDamage) {
+                canvas.drawRect(damage, damagePaint)
+                lastDamage.set(damage)
+            } else {
+                lastDamage.setEmpty()
+            }
+        } finally {
+            rootNode.endRecording()
+        }
+        stats.draw.record(System.nanoTime() - start)
+        val vsyncTime = if (frameTimeNanos != 0L) frameTimeNanos else System.nanoTime()
+        start = System.nanoTime()
+        renderer.createRenderRequest().setVsyncTime(vsyncTime).syncAndDraw()
+        stats.post.record(System.nanoTime() - start)
+        activeFrames++
+        if (activeFrames == 1L) {
+            surface.onFirstFrame(System.nanoTime())
+        }
+        damage.setEmpty()
+    }
+
     private fun doTraversals() {
         val view = view
         val surface = surface
@@ -189,43 +424,86 @@ class ViewRootImpl(
         val h: Int = surface.h
         if (time != lastTraverseTime) {
             // only update when time changed
+            val traversalStart = System.nanoTime()
             val ai = attachInfo!!
             val layout = layoutRequest || ai.forceLayout
             if (layout || view.needLayout) {
                 performMeasure(w, h)
                 performLayout()
+                stats.layout.record(System.nanoTime() - traversalStart)
+            }
+            if (ai.forceLayout || w != lastWidth || h != lastHeight) {
+                ai.dirty.set(0, 0, w, h)
+                lastWidth = w
+                lastHeight = h
             }
             layoutRequest = false
             ai.forceLayout = false
-            val holder = surface.getHolder()
-            Timing.start("lockCanvas")
-            val canvas = if (useHardwareAccelerateIfPossible) {
-                holder.lockHardwareCanvas()
-            } else {
-                holder.lockCanvas()
-            }
-            Timing.end()
-            if (canvas != null) {
-                performDraw(canvas, time)
-                holder.unlockCanvasAndPost(canvas)
+            performUpdate(ai, time)
+            if (!ai.dirty.isEmpty) {
+                draw(surface, ai, time)
             }
             lastTraverseTime = time
+            stats.recordTraversal(System.nanoTime() - traversalStart)
+            if (!destroy && !layoutRequest && view.isIdle()) {
+                park(view)
+                return
+            }
         }
         if (!destroy) {
             scheduleTraversals()
         }
     }
 
+    /**
+     * Stops scheduling traversals until [wake] is called.
+     */
+    private fun park(view: View) {
+        parkedTimeNanos = System.nanoTime()
+        frameTimeNanos = 0L
+        lastTraversalFrameNanos = 0L
+        // Notify before marking parked, so that a concurrent wake is always notified after this
+        surface?.onIdle(true)
+        parked.set(true)
+        // Content may arrive before parked is set and the producer won't wake us, check again
+        if (!view.isIdle()) {
+            wake()
+        }
+    }
+
+    /**
+     * Restarts the render loop if it's parked. Can be called from any thread.
+     *
+     * @return whether the render loop was parked.
+     */
+    fun wake(): Boolean {
+        if (destroy || !parked.compareAndSet(true, false)) {
+            return false
+        }
+        val now = System.nanoTime()
+        idleFrames += (now - parkedTimeNanos) / EsusRenderer.frameIntervalNanos
+        // The clock may have stopped while parked, don't traverse at the time of parking
+        surface?.onWake(now)
+        surface?.onIdle(false)
+        // Traversals are only driven by onFrame in manual mode
+        handler?.sendEmptyMessage(MSG_TRAVERSE)
+        return true
+    }
+
     private fun scheduleTraversals() {
-        if (destroy) {
+        val handler = handler
+        if (destroy || handler == null) {
+            // Traversals are only driven by onFrame in manual mode
             return
         }
         // ensure traverse on sus-main thread...
-        if (Thread.currentThread() == susMainThread) {
+        if (handler.looper.isCurrentThread) {
             if (mode == MODE_CHOREOGRAPHER && !traversalScheduled && !destroy) {
-                choreographer.postFrameCallback(frameTask)
                 traversalScheduled = true
-            } else if (mode == MODE_THREAD) {
+                EsusRenderer.requestVsync()
+            } else if (mode == MODE_THREAD && !traversalScheduled) {
+                // Only one pending traversal, however many requests come in a frame
+                traversalScheduled = true
                 handler.sendEmptyMessageDelayed(MSG_TRAVERSE, FRAME_DELAY)
             }
         } else {
@@ -234,39 +512,84 @@ class ViewRootImpl(
     }
 
     private fun unscheduleTraversals() {
-        choreographer.removeFrameCallback(frameTask)
         traversalScheduled = false
     }
 
     override fun requestLayout() {
         layoutRequest = true
-        scheduleTraversals()
+        if (!wake()) {
+            scheduleTraversals()
+        }
     }
 
+    /**
+     * Dispatches a touch event at ([x], [y]) of the surface to the view tree in the ESUS main thread. Can be called
+     * from any thread. The event is sent in a pooled [Message] and dispatched with one reused [TouchEvent], so no
+     * object is allocated per event.
+     *
+     * @param action one of the actions of [TouchEvent]
+     */
+    fun dispatchTouchEvent(action: Int, x: Float, y: Float) {
+        if (destroy) {
+            return
+        }
+        val handler = handler
+        if (handler == null) {
+            doTouchEvent(action, x, y)
+            return
+        }
+        handler.obtainMessage(MSG_TOUCH + action, x.toRawBits(), y.toRawBits()).sendToTarget()
+    }
+
+    private fun doTouchEvent(action: Int, x: Float, y: Float) {
+        val e = touchEvent
+        e.actionType = action
+        e.x = x
+        e.y = y
+        e.rawX = x
+        e.rawY = y
+        view?.dispatchTouchEvent(e)
+    }
+
+    /**
+     * Traverses the view tree once in [MODE_MANUAL], in the calling thread. Together with a synthetic
+     * [ISurface.time], the render loop can be replayed deterministically, e.g. to measure a recorded stream of
+     * danmakus frame by frame.
+     */
     fun onFrame() {
-        if (mode == MODE_MANUAL) {
-            handler.sendEmptyMessage(MSG_TRAVERSE)
+        if (mode == MODE_MANUAL && !destroy) {
+            doTraversals()
         }
     }
 
     // die
     // this may be called from other threads...
     fun die() {
-        if (destroy || !susMainThread.isAlive) {
+        if (destroy) {
             return
         }
         destroy = true
-        // make sure run on susMainThread
+        val handler = handler
+        if (handler == null) {
+            // In the thread driving the frames in manual mode
+            doDie()
+            return
+        }
+        // make sure run on the render thread
         handler.sendEmptyMessage(MSG_DESTROY)
     }
 
     private fun doDie() {
-        choreographer.removeFrameCallback(frameTask)
-        handler.removeCallbacksAndMessages(null)
+        traversalScheduled = false
         view?.dispatchDetached()
         view = null
         surface = null
         attachInfo = null
-        susMainThread.quit()
+        renderer?.destroy()
+        renderer = null
+        val handler = handler ?: return
+        handler.removeCallbacksAndMessages(null)
+        // Quits the render thread if it's the last one
+        EsusRenderer.unregister(this)
     }
 }
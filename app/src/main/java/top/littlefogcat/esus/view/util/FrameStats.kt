@@ -0,0 +1,85 @@
+package top.littlefogcat.esus.view.util
+
+import java.io.PrintWriter
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Timings of the render loop of one ViewRootImpl.
+ *
+ * Recorded on the ESUS main thread without locks or allocation, and can be dumped from any thread.
+ */
+class FrameStats {
+    companion object {
+        /** Frame budget at 120Hz **/
+        const val BUDGET_120HZ_NANOS = 8_333_333L
+
+        /** Frame budget at 60Hz **/
+        const val BUDGET_60HZ_NANOS = 16_666_667L
+    }
+
+    /** Whole traversal, including update, layout and draw **/
+    val traversal = Histogram("traversal")
+    val layout = Histogram("layout")
+
+    /** Drawing or recording the view tree **/
+    val draw = Histogram("draw")
+    val lockCanvas = Histogram("lockCanvas")
+
+    /** unlockCanvasAndPost, or syncAndDraw of the renderer **/
+    val post = Histogram("post")
+
+    /** Frame rate the render loop is limited to, 0 for every vsync **/
+    @Volatile
+    var targetFrameRate = 0f
+
+    /** The render loop traverses every this many vsyncs **/
+    @Volatile
+    var frameRateDivisor = 1
+
+    /** Vsyncs skipped to keep to [targetFrameRate] or [frameRateDivisor] **/
+    val skippedFrames = AtomicLong()
+
+    /** Frames put off to the next vsync, since roots of higher priority used up the frame **/
+    val deferredFrames = AtomicLong()
+
+    private val overBudget120Hz = AtomicLong()
+    private val overBudget60Hz = AtomicLong()
+
+    /**
+     * Records a traversal taking [durationNanos], and counts it if over budget.
+     */
+    fun recordTraversal(durationNanos: Long) {
+        traversal.record(durationNanos)
+        if (durationNanos > BUDGET_120HZ_NANOS) {
+            overBudget120Hz.incrementAndGet()
+            if (durationNanos > BUDGET_60HZ_NANOS) {
+                overBudget60Hz.incrementAndGet()
+            }
+        }
+    }
+
+    fun reset() {
+        traversal.reset()
+        layout.reset()
+        draw.reset()
+        lockCanvas.reset()
+        post.reset()
+        overBudget120Hz.set(0)
+        overBudget60Hz.set(0)
+        skippedFrames.set(0)
+        deferredFrames.set(0)
+    }
+
+    fun dump(pw: PrintWriter, prefix: String = "") {
+        pw.println(
+            "${prefix}targetFrameRate=$targetFrameRate frameRateDivisor=$frameRateDivisor " +
+                    "skippedFrames=${skippedFrames.get()} deferredFrames=${deferredFrames.get()}"
+        )
+        pw.println("${prefix}frames over 8.3ms=${overBudget120Hz.get()} over 16.6ms=${overBudget60Hz.get()}")
+        pw.println("$prefix$traversal")
+        pw.println("$prefix$layout")
+        pw.println("$prefix$draw")
+        pw.println("$prefix$lockCanvas")
+        pw.println("$prefix$post")
+    }
+}
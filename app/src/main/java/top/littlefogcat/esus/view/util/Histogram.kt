@@ -0,0 +1,116 @@
+package top.littlefogcat.esus.view.util
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A fixed-bucket histogram of durations, in the style of HdrHistogram.
+ *
+ * Values are recorded in microseconds. Values below [LINEAR_LIMIT] have a bucket of their own; above that, each power
+ * of 2 is split into [SUB_BUCKETS] buckets, so the relative error is within 1/[SUB_BUCKETS]. Values larger than
+ * [MAX_MICROS] fall into the last bucket.
+ *
+ * Recording is lock-free and allocation-free, so it can be done on the render thread. Reading may happen on any
+ * thread, and may see a recording half done.
+ */
+class Histogram(val name: String) {
+    companion object {
+        private const val SUB_BUCKET_BITS = 5
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val LINEAR_LIMIT = SUB_BUCKETS * 2
+
+        /** About 33 seconds **/
+        private const val MAX_MAGNITUDE = 25
+        const val MAX_MICROS = (1L shl (MAX_MAGNITUDE + 1)) - 1
+        private val BUCKET_COUNT = indexOf(MAX_MICROS) + 1
+
+        private const val NANOS_PER_MICRO = 1000L
+
+        private fun indexOf(micros: Long): Int {
+            if (micros < LINEAR_LIMIT) {
+                return micros.toInt()
+            }
+            val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(micros)
+            val shift = magnitude - SUB_BUCKET_BITS
+            val sub = (micros ushr shift).toInt() - SUB_BUCKETS
+            return LINEAR_LIMIT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub
+        }
+
+        /** Returns the largest value in microseconds falling into bucket [index] **/
+        private fun highestOf(index: Int): Long {
+            if (index < LINEAR_LIMIT) {
+                return index.toLong()
+            }
+            val i = index - LINEAR_LIMIT
+            val magnitude = i / SUB_BUCKETS + SUB_BUCKET_BITS + 1
+            val sub = i % SUB_BUCKETS + SUB_BUCKETS
+            val shift = magnitude - SUB_BUCKET_BITS
+            return ((sub + 1L) shl shift) - 1
+        }
+    }
+
+    private val buckets = AtomicLongArray(BUCKET_COUNT)
+    private val count = AtomicLong()
+    private val sumMicros = AtomicLong()
+    private val maxMicros = AtomicLong()
+
+    val totalCount: Long get() = count.get()
+
+    fun record(durationNanos: Long) {
+        val micros = (durationNanos / NANOS_PER_MICRO).coerceIn(0, MAX_MICROS)
+        buckets.incrementAndGet(indexOf(micros))
+        count.incrementAndGet()
+        sumMicros.addAndGet(micros)
+        var max = maxMicros.get()
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get()
+        }
+    }
+
+    /**
+     * Returns the value in microseconds at [percentile] (0~100), or 0 if nothing recorded.
+     */
+    fun valueAt(percentile: Double): Long {
+        val total = count.get()
+        if (total == 0L) {
+            return 0
+        }
+        val target = maxOf(1L, Math.ceil(total * percentile / 100).toLong())
+        var seen = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            seen += buckets.get(i)
+            if (seen >= target) {
+                return minOf(highestOf(i), maxMicros.get())
+            }
+        }
+        return maxMicros.get()
+    }
+
+    /**
+     * Returns the count of values larger than [thresholdNanos]. Precise to a bucket.
+     */
+    fun countAbove(thresholdNanos: Long): Long {
+        val micros = (thresholdNanos / NANOS_PER_MICRO).coerceIn(0, MAX_MICROS)
+        var above = 0L
+        for (i in indexOf(micros) + 1 until BUCKET_COUNT) {
+            above += buckets.get(i)
+        }
+        return above
+    }
+
+    fun reset() {
+        for (i in 0 until BUCKET_COUNT) {
+            buckets.set(i, 0)
+        }
+        count.set(0)
+        sumMicros.set(0)
+        maxMicros.set(0)
+    }
+
+    override fun toString(): String {
+        val total = count.get()
+        val mean = if (total == 0L) 0 else sumMicros.get() / total
+        return "$name: count=$total mean=${mean}us p50=${valueAt(50.0)}us p90=${valueAt(90.0)}us " +
+                "p99=${valueAt(99.0)}us max=${maxMicros.get()}us"
+    }
+}
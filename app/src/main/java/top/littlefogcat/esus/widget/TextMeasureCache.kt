@@ -0,0 +1,131 @@
+package top.littlefogcat.esus.widget
+
+import android.graphics.Paint
+import android.graphics.Typeface
+import android.text.BoringLayout
+import android.text.TextPaint
+import kotlin.math.ceil
+
+/**
+ * A bounded LRU cache of text measurements, keyed by (text, textSize, typeface, hasDrawable).
+ *
+ * Shared by all [TextView]s in one surface through [top.littlefogcat.esus.view.View.AttachInfo]. A hit returns the
+ * cached [Entry] without allocating or shaping the text again.
+ *
+ * Should only be used in the ESUS main thread.
+ */
+class TextMeasureCache(private val maxEntries: Int = DEFAULT_MAX_ENTRIES) {
+    companion object {
+        const val DEFAULT_MAX_ENTRIES = 256
+    }
+
+    /**
+     * Measured size of a text. Never modified after created, so it's safe to be held after evicted.
+     */
+    class Entry internal constructor(val width: Int, val top: Int, val bottom: Int) {
+        val height get() = bottom - top
+    }
+
+    private class Key {
+        var text: CharSequence = ""
+        var textSize = 0f
+        var typeface: Typeface? = null
+        var hasDrawable = false
+
+        override fun equals(other: Any?): Boolean {
+            return other is Key && textSize == other.textSize && typeface === other.typeface &&
+                    hasDrawable == other.hasDrawable && text == other.text
+        }
+
+        override fun hashCode(): Int {
+            var result = text.hashCode()
+            result = 31 * result + textSize.toBits()
+            result = 31 * result + System.identityHashCode(typeface)
+            result = 31 * result + if (hasDrawable) 1 else 0
+            return result
+        }
+    }
+
+    private val entries = object : LinkedHashMap<Key, Entry>(maxEntries, 0.75f, true) {
+        // Qualified, since LinkedHashMap of the JDK has an Entry class of its own
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Key, TextMeasureCache.Entry>?): Boolean {
+            return size > maxEntries
+        }
+    }
+
+    /** Reused to look up, so that a hit is allocation-free **/
+    private val probe = Key()
+    private val metrics = BoringLayout.Metrics()
+    private val fontMetrics = Paint.FontMetricsInt()
+
+    var hits = 0L
+        private set
+    var misses = 0L
+        private set
+
+    /**
+     * Returns the size of [text] drawn by [paint], whose text size must have been set. If [hasDrawable], a square
+     * drawable as high as the text is put before the text.
+     */
+    fun measure(text: CharSequence, paint: TextPaint, hasDrawable: Boolean): Entry {
+        val probe = probe
+        probe.text = text
+        probe.textSize = paint.textSize
+        probe.typeface = paint.typeface
+        probe.hasDrawable = hasDrawable
+        val cached = entries[probe]
+        probe.text = ""
+        probe.typeface = null
+        if (cached != null) {
+            hits++
+            return cached
+        }
+        misses++
+        val entry = measureDirectly(text, paint, hasDrawable)
+        entries[Key().also {
+            it.text = text.toString()
+            it.textSize = paint.textSize
+            it.typeface = paint.typeface
+            it.hasDrawable = hasDrawable
+        }] = entry
+        return entry
+    }
+
+    /**
+     * Puts [entry] measured elsewhere, e.g. by another cache on a worker thread, so that measuring the same text
+     * later is a hit.
+     */
+    fun put(text: CharSequence, textSize: Float, typeface: Typeface?, hasDrawable: Boolean, entry: Entry) {
+        entries[Key().also {
+            it.text = text.toString()
+            it.textSize = textSize
+            it.typeface = typeface
+            it.hasDrawable = hasDrawable
+        }] = entry
+    }
+
+    fun clear() {
+        entries.clear()
+    }
+
+    private fun measureDirectly(text: CharSequence, paint: TextPaint, hasDrawable: Boolean): Entry {
+        val boring = BoringLayout.isBoring(text, paint, metrics)
+        val top: Int
+        val bottom: Int
+        val textWidth: Int
+        if (boring != null) {
+            top = boring.top
+            bottom = boring.bottom
+            textWidth = boring.width
+        } else {
+            // Not boring, e.g. RTL text, measure it in a single line anyway
+            paint.getFontMetricsInt(fontMetrics)
+            top = fontMetrics.top
+            bottom = fontMetrics.bottom
+            textWidth = ceil(paint.measureText(text, 0, text.length)).toInt()
+        }
+        val h = bottom - top
+        val w = if (hasDrawable) h + textWidth else textWidth
+        return Entry(w, top, bottom)
+    }
+}
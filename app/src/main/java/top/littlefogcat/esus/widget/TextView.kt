@@ -5,11 +5,11 @@ import android.graphics.Color
 import android.graphics.Paint
 import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
-import android.text.BoringLayout
 import android.text.TextPaint
 import android.util.Log
 import top.littlefogcat.esus.view.View
 import top.littlefogcat.esus.view.ViewParent
+import kotlin.math.ceil
 
 /**
  * @author littlefogcat
@@ -21,21 +21,32 @@ open class TextView() : View() {
         set(value) {
             field = value
             requestLayout()
+            invalidate()
         }
     var textSize = 60f
         set(value) {
             field = value
             requestLayout()
+            invalidate()
         }
 
     /**
      * Indicates whether the stroke of the text should be drawn.
      */
     var stroke: Stroke? = null
+        set(value) {
+            field = value
+            invalidate()
+        }
 
     var textColor = Color.BLACK
+        set(value) {
+            field = value
+            invalidate()
+        }
     override val paint = TextPaint().apply { isAntiAlias = true }
-    protected var boring: BoringLayout.Metrics? = null
+    /** Size of text measured, null if not measured yet **/
+    protected var metrics: TextMeasureCache.Entry? = null
 
     // 0b_0001_0000_0000_
     private val opacityMask = -0x1000000
@@ -47,9 +58,13 @@ open class TextView() : View() {
         set(value) {
             field = value
             requestLayout()
+            invalidate()
         }
     var drawableSize = 0
 
+    override val drawingOutset: Int
+        get() = stroke?.let { ceil(it.width).toInt() } ?: 0
+
     constructor(text: CharSequence) : this() {
         this.text = text
     }
@@ -70,27 +85,31 @@ open class TextView() : View() {
 
         // measure text
         paint.textSize = textSize
-        val boring = BoringLayout.isBoring(text, paint)
-        val h = boring.bottom - boring.top
-        val w = if (drawableLeft == null) boring.width
-        else h + boring.width
-        setMeasuredDimensions(w, h)
-        this.boring = boring
+        val cache = attachInfo?.textMeasureCache ?: TextMeasureCache(1)
+        val metrics = cache.measure(text, paint, drawableLeft != null)
+        setMeasuredDimensions(metrics.width, metrics.height)
+        this.metrics = metrics
     }
 
     override fun onDraw(canvas: Canvas, parent: ViewParent?, time: Long) {
         if (attachInfo == null) {
             return
         }
-        val boring = boring ?: return
+        drawContent(canvas, alpha)
+    }
+
+    /**
+     * Draws the drawable, stroke and text at (0, 0) of [canvas] with text opacity [alpha].
+     */
+    protected fun drawContent(canvas: Canvas, alpha: Int) {
+        val metrics = metrics ?: return
         var x = 0f
-        val y = -boring.top.toFloat()
+        val y = -metrics.top.toFloat()
 
         // draw drawable
         drawableLeft?.let {
             val padding = (height - drawableSize) / 2
-            it.setBounds(padding, padding, padding + drawableSize, padding + drawableSize)
-            it.draw(canvas)
+            drawDrawableLeft(canvas, it, padding, padding, drawableSize)
             x += height
         }
         // draw stroke
@@ -110,6 +129,14 @@ open class TextView() : View() {
         canvas.drawText(text, 0, text.length, x, y, paint)
     }
 
+    /**
+     * Draws [drawable] in a [size] x [size] square at ([left], [top]) of [canvas].
+     */
+    protected open fun drawDrawableLeft(canvas: Canvas, drawable: Drawable, left: Int, top: Int, size: Int) {
+        drawable.setBounds(left, top, left + size, top + size)
+        drawable.draw(canvas)
+    }
+
     override fun toString(): String {
         return "TextView(text='$text' $x, $y, ${x + width}, ${y + height})"
     }
@@ -0,0 +1,150 @@
+package top.littlefogcat.easydanmaku.ui
+
+import android.content.Context
+import android.content.ContextWrapper
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Rect
+import android.text.TextPaint
+import android.view.Surface
+import android.view.SurfaceHolder
+import top.littlefogcat.easydanmaku.Danmakus
+import top.littlefogcat.esus.view.ISurface
+import top.littlefogcat.esus.view.ViewRootImpl
+import java.io.Closeable
+import kotlin.math.ceil
+
+/**
+ * A [DanmakuContainer] set to a [ViewRootImpl] in [ViewRootImpl.MODE_MANUAL], whose frames are traversed one by one
+ * in the calling thread against a synthetic clock. Shared by the tests running whole frames of the engine on the
+ * JVM: update, measure, layout and draw.
+ *
+ * Android classes return default values here, so the canvas draws nothing, and the text is measured by
+ * [FixedMetricsPaint]. While the fixture is open, the lookahead is disabled, so that nothing runs outside the calling
+ * thread, and the admission budget is lifted, so that frames don't depend on the speed of the machine. The options
+ * are restored by [close].
+ */
+internal class DanmakuFixture(width: Int = 1920, height: Int = 1080) : ISurface, Closeable {
+    override var time = 0L
+    override var w = width
+    override var h = height
+
+    private val canvas = Canvas()
+    private val context = ContextWrapper(null)
+    private val holder = object : SurfaceHolder {
+        override fun addCallback(callback: SurfaceHolder.Callback?) {}
+        override fun removeCallback(callback: SurfaceHolder.Callback?) {}
+        override fun isCreating() = false
+        @Deprecated("Deprecated in Java")
+        override fun setType(type: Int) {}
+        override fun setFixedSize(width: Int, height: Int) {}
+        override fun setSizeFromLayout() {}
+        override fun setFormat(format: Int) {}
+        override fun setKeepScreenOn(screenOn: Boolean) {}
+        override fun lockCanvas() = canvas
+        override fun lockCanvas(dirty: Rect?) = canvas
+        override fun lockHardwareCanvas() = canvas
+        override fun unlockCanvasAndPost(canvas: Canvas?) {}
+        override fun getSurfaceFrame() = Rect(0, 0, w, h)
+        override fun getSurface(): Surface = throw UnsupportedOperationException()
+    }
+
+    private val paint = Danmakus.Globals.paint
+    private val lookaheadMillis = Danmakus.Options.lookaheadMillis
+    private val admissionBudgetMicros = Danmakus.Options.admissionBudgetMicros
+
+    val container: DanmakuContainer
+    val root: ViewRootImpl
+
+    init {
+        // Set before any danmaku is created, since each one keeps the paint
+        Danmakus.Globals.paint = FixedMetricsPaint()
+        Danmakus.Options.lookaheadMillis = 0
+        Danmakus.Options.admissionBudgetMicros = Int.MAX_VALUE / 1000
+        container = DanmakuContainer()
+        root = ViewRootImpl(this, mode = ViewRootImpl.MODE_MANUAL)
+        root.setView(container)
+    }
+
+    /**
+     * Traverses the view tree at [time]. Nothing is done if it's the time of the last frame.
+     */
+    fun frame(time: Long) {
+        this.time = time
+        root.onFrame()
+    }
+
+    override fun getHolder(): SurfaceHolder = holder
+
+    override fun getContext(): Context = context
+
+    override fun close() {
+        root.die()
+        Danmakus.Globals.paint = paint
+        Danmakus.Options.lookaheadMillis = lookaheadMillis
+        Danmakus.Options.admissionBudgetMicros = admissionBudgetMicros
+    }
+
+    /**
+     * Measures each character as wide as the text size, with the font metrics of a typical sans-serif font, instead
+     * of the zeros of the Android classes here.
+     */
+    private class FixedMetricsPaint : TextPaint() {
+        private var size = 0f
+
+        override fun setTextSize(textSize: Float) {
+            size = textSize
+        }
+
+        override fun getTextSize() = size
+
+        override fun measureText(text: CharSequence?, start: Int, end: Int) = size * (end - start)
+
+        override fun getFontMetricsInt(fmi: Paint.FontMetricsInt?): Int {
+            val top = -ceil(size * 1.22f).toInt()
+            val bottom = ceil(size * 0.488f).toInt()
+            fmi?.let {
+                it.top = top
+                it.ascent = -ceil(size * 0.928f).toInt()
+                it.descent = ceil(size * 0.244f).toInt()
+                it.bottom = bottom
+                it.leading = 0
+            }
+            return bottom - top
+        }
+    }
+}
+
+/**
+ * CPU time and allocated bytes of the calling thread, read through `com.sun.management.ThreadMXBean`.
+ * java.lang.management is not in android.jar, which the tests are compiled against, so it's looked up once here.
+ */
+internal object ThreadCounters {
+    private const val WARMUP_READS = 2_000
+
+    private val threads = Class.forName("java.lang.management.ManagementFactory")
+        .getMethod("getThreadMXBean").invoke(null)
+    private val threadsClass = Class.forName("com.sun.management.ThreadMXBean")
+    private val getCurrentThreadCpuTime = threadsClass.getMethod("getCurrentThreadCpuTime")
+    private val getThreadAllocatedBytes =
+        threadsClass.getMethod("getThreadAllocatedBytes", Long::class.javaPrimitiveType)
+
+    /** Whether allocated bytes can be read on this JVM **/
+    val isSupported: Boolean = threadsClass.isInstance(threads) &&
+            threadsClass.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads) == true
+
+    /**
+     * Bytes allocated by reading [allocatedBytes] once, e.g. the boxed result. Measured once the reflective call is
+     * warmed up.
+     */
+    val overhead: Long by lazy {
+        for (i in 0 until WARMUP_READS) {
+            allocatedBytes()
+        }
+        allocatedBytes().let { allocatedBytes() - it }
+    }
+
+    fun cpuTimeNanos(): Long = getCurrentThreadCpuTime.invoke(threads) as Long
+
+    fun allocatedBytes(): Long = getThreadAllocatedBytes.invoke(threads, Thread.currentThread().id) as Long
+}
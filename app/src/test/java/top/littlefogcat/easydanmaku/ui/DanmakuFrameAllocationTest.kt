@@ -0,0 +1,65 @@
+package top.littlefogcat.easydanmaku.ui
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
+import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+
+/**
+ * Drives a [DanmakuContainer] through a [DanmakuFixture] with a steady stream of danmakus, and checks that whole
+ * frames, from the update of the container and its danmakus to drawing them, allocate nothing once warmed up.
+ *
+ * The stream fits the lanes and the pools, so that once the first danmakus have gone, each one admitted takes the
+ * view and the lane of one gone before.
+ *
+ * The JVM itself may allocate once in a while on the calling thread, e.g. when the JIT compiles or deoptimizes a
+ * method of the frame, so frames are measured in windows, and it's enough that one window allocates nothing. A frame
+ * allocating on its own would allocate in every window.
+ */
+class DanmakuFrameAllocationTest {
+    companion object {
+        private const val FRAME_MILLIS = 16L
+        private const val DANMAKU_INTERVAL_MILLIS = 500L
+        private const val WARMUP_FRAMES = 2_000
+        private const val MEASURED_FRAMES = 1_000
+        private const val MAX_WINDOWS = 5
+    }
+
+    @Test
+    fun steadyFramesAllocateNothing() {
+        assumeTrue(ThreadCounters.isSupported)
+        DanmakuFixture().use { fixture ->
+            val items = ArrayList<DanmakuItem>()
+            val endTime = (WARMUP_FRAMES + MEASURED_FRAMES * MAX_WINDOWS + 1) * FRAME_MILLIS
+            for (time in 0 until endTime step DANMAKU_INTERVAL_MILLIS) {
+                items.add(DanmakuItem("danmaku", time, Danmaku.TYPE_RL, 0, 0))
+            }
+            fixture.container.setDanmakus(items)
+            var time = FRAME_MILLIS
+            for (i in 0 until WARMUP_FRAMES) {
+                fixture.frame(time)
+                time += FRAME_MILLIS
+            }
+            val overhead = ThreadCounters.overhead
+            var allocated = -1L
+            var window = 0
+            while (allocated != 0L && window < MAX_WINDOWS) {
+                val admitted = fixture.container.admission.admitted
+                val drawn = fixture.root.activeFrames
+                val before = ThreadCounters.allocatedBytes()
+                for (i in 0 until MEASURED_FRAMES) {
+                    fixture.frame(time)
+                    time += FRAME_MILLIS
+                }
+                allocated = ThreadCounters.allocatedBytes() - before - overhead
+                // The measured frames did admit and draw danmakus
+                assertTrue(fixture.container.admission.admitted > admitted)
+                assertTrue(fixture.root.activeFrames > drawn)
+                window++
+            }
+            assertEquals("bytes allocated in $MEASURED_FRAMES frames", 0L, allocated)
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package top.littlefogcat.easydanmaku.ui
+
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import top.littlefogcat.easydanmaku.Danmakus
+import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
+import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.Random
+
+/**
+ * Replays an hour of danmakus through a [DanmakuContainer] driven by a [DanmakuFixture] frame by frame, and reports
+ * the CPU time and allocations of the frames, the dropped danmakus and the peak of live views.
+ *
+ * The danmakus arrive in bursts like notifications, generated from a fixed seed, so that the numbers of one change
+ * can be compared with those of another.
+ */
+class DanmakuReplayTest {
+    companion object {
+        private const val FRAME_MILLIS = 16L
+        private const val REPLAY_MILLIS = 60 * 60 * 1000L
+        private const val SEED = 20221018L
+        private const val MEAN_BURST_GAP_MILLIS = 20_000.0
+        private const val MAX_BURST_SIZE = 40
+        private const val BURST_SPREAD_MILLIS = 2_000
+    }
+
+    /**
+     * Counters of one replay. The per-frame arrays are indexed by frame.
+     */
+    private class Report(frames: Int) {
+        val cpuNanos = LongArray(frames)
+        val allocatedBytes = LongArray(frames)
+        var offered = 0
+        var admitted = 0L
+        var dropped = 0L
+        var peakLiveViews = 0
+        var framesDrawn = 0L
+        var frameStats = ""
+
+        override fun toString(): String {
+            val cpu = cpuNanos.sortedArray()
+            return "offered=$offered, admitted=$admitted, dropped=$dropped, peakLiveViews=$peakLiveViews, " +
+                    "frames=${cpu.size}, framesDrawn=$framesDrawn, cpuP50Us=${cpu[cpu.size / 2] / 1000}, " +
+                    "cpuP99Us=${cpu[cpu.size * 99 / 100] / 1000}, cpuMaxUs=${cpu[cpu.size - 1] / 1000}, " +
+                    "allocatedBytes=${allocatedBytes.sum()}\n$frameStats"
+        }
+    }
+
+    @Test
+    fun replayIsReproducible() {
+        assumeTrue(ThreadCounters.isSupported)
+        val first = replay()
+        val second = replay()
+        println("DanmakuReplayTest: $first")
+        // Every danmaku is shown or dropped once the queue has drained
+        assertEquals(first.offered.toLong(), first.admitted + first.dropped)
+        assertEquals(first.admitted, second.admitted)
+        assertEquals(first.dropped, second.dropped)
+        assertEquals(first.peakLiveViews, second.peakLiveViews)
+        assertEquals(first.framesDrawn, second.framesDrawn)
+    }
+
+    private fun replay(): Report {
+        val items = arrivals()
+        val duration = Danmakus.Options.scrollingDanmakuDuration.toLong()
+        val endTime = REPLAY_MILLIS + BURST_SPREAD_MILLIS + Danmakus.Options.admissionMaxWait + duration
+        val report = Report((endTime / FRAME_MILLIS).toInt())
+        report.offered = items.size
+
+        DanmakuFixture().use { fixture ->
+            fixture.container.setDanmakus(items)
+            for (frame in 0 until report.cpuNanos.size) {
+                // The first traversal is at the first frame after 0, since the root has traversed 0 already
+                val time = (frame + 1) * FRAME_MILLIS
+                val cpuBefore = ThreadCounters.cpuTimeNanos()
+                val allocatedBefore = ThreadCounters.allocatedBytes()
+                fixture.frame(time)
+                report.cpuNanos[frame] = ThreadCounters.cpuTimeNanos() - cpuBefore
+                report.allocatedBytes[frame] = ThreadCounters.allocatedBytes() - allocatedBefore
+            }
+            val admission = fixture.container.admission
+            report.admitted = admission.admitted
+            report.dropped = admission.dropped
+            report.peakLiveViews = fixture.container.peakChildCount
+            report.framesDrawn = fixture.root.activeFrames
+            report.frameStats = StringWriter().also {
+                PrintWriter(it).use { pw -> fixture.root.stats.dump(pw, "  ") }
+            }.toString()
+        }
+        return report
+    }
+
+    /**
+     * Bursts of danmakus at exponentially distributed gaps, each spread over a short while, sorted by time.
+     */
+    private fun arrivals(): List<DanmakuItem> {
+        val random = Random(SEED)
+        val items = ArrayList<DanmakuItem>()
+        var time = 0L
+        while (true) {
+            time += (-MEAN_BURST_GAP_MILLIS * Math.log(1 - random.nextDouble())).toLong()
+            if (time >= REPLAY_MILLIS) {
+                break
+            }
+            val size = 1 + random.nextInt(MAX_BURST_SIZE)
+            for (i in 0 until size) {
+                val priority = if (random.nextInt(8) == 0) 1 else 0
+                val arrival = time + random.nextInt(BURST_SPREAD_MILLIS)
+                items.add(DanmakuItem("danmaku $i", arrival, Danmaku.TYPE_RL, 0, priority))
+            }
+        }
+        items.sortBy { it.time }
+        return items
+    }
+}
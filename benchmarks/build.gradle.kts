@@ -0,0 +1,49 @@
+plugins {
+    id("org.jetbrains.kotlin.jvm")
+    id("me.champeau.jmh")
+}
+
+// The danmaku engine is compiled from the sources of :app, against stubs of the few Android classes it uses. The
+// stubs draw nothing, so the benchmarks measure the data structures of the engine, not rendering.
+sourceSets {
+    main {
+        java.setSrcDirs(listOf("src/stubs/java"))
+    }
+}
+
+kotlin {
+    sourceSets["main"].kotlin.apply {
+        setSrcDirs(listOf("../app/src/main/java"))
+        include(
+            "top/littlefogcat/easydanmaku/Danmakus.kt",
+            "top/littlefogcat/easydanmaku/danmakus/**",
+            "top/littlefogcat/easydanmaku/ui/**",
+            "top/littlefogcat/easydanmaku/util/**",
+            "top/littlefogcat/esus/view/**",
+            "top/littlefogcat/esus/widget/TextView.kt",
+            "top/littlefogcat/esus/widget/TextMeasureCache.kt",
+        )
+        // The Android View hosting the engine
+        exclude("top/littlefogcat/easydanmaku/ui/DanmakuView.kt")
+    }
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+tasks.withType<org.jetbrains.kotlin.gradle.tasks.KotlinCompile>().configureEach {
+    kotlinOptions.jvmTarget = "1.8"
+}
+
+// Compare against baseline.txt, taken with the same settings
+jmh {
+    jmhVersion.set("1.35")
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("1s")
+    iterations.set(5)
+    timeOnIteration.set("1s")
+    resultFormat.set("TEXT")
+}
@@ -0,0 +1,46 @@
+package top.littlefogcat.easydanmaku.danmakus
+
+import org.openjdk.jmh.annotations.*
+import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+import java.util.concurrent.TimeUnit
+
+/**
+ * Acquiring and releasing danmakus of [DanmakuPools]: one at a time, and in bursts as large as a pool, as when a
+ * burst of danmakus is admitted and then gone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class DanmakuPoolsBenchmark {
+    companion object {
+        private const val BURST = Danmaku.MAX_POOL_SIZE_LARGE
+    }
+
+    private val pools = DanmakuPools()
+    private val pool = pools.ofType(Danmaku.TYPE_RL)
+    private val burst = arrayOfNulls<Danmaku>(BURST)
+
+    @Setup
+    fun setUp() {
+        pool.fill(BURST)
+    }
+
+    @Benchmark
+    fun acquireRelease(): Danmaku {
+        val danmaku = pool.acquire()
+        pool.release(danmaku)
+        return danmaku
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    fun acquireReleaseBurst(): Int {
+        for (i in 0 until BURST) {
+            burst[i] = pool.acquire()
+        }
+        for (i in 0 until BURST) {
+            pool.release(burst[i]!!)
+        }
+        return pools.size
+    }
+}
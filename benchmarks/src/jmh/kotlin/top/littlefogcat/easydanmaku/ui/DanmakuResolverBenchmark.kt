@@ -0,0 +1,62 @@
+package top.littlefogcat.easydanmaku.ui
+
+import org.openjdk.jmh.annotations.*
+import top.littlefogcat.easydanmaku.danmakus.DanmakuItem
+import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+import java.util.concurrent.TimeUnit
+
+/**
+ * Retrieving danmakus frame by frame from a [DanmakuResolverImpl] holding [size] of them.
+ *
+ * Each danmaku retrieved is offered again one data set later, so that the size stays the same however long it runs,
+ * and the cost of offering and compacting is included as in a live stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class DanmakuResolverBenchmark {
+    companion object {
+        private const val FRAME_MILLIS = 16L
+        private const val INTERVAL_MILLIS = 10L
+
+        /** Looked ahead by the container, see DanmakuLookahead **/
+        private const val WINDOW_MILLIS = 2000L
+    }
+
+    @Param("1000", "10000", "100000")
+    @JvmField
+    var size = 0
+
+    private val resolver = DanmakuResolverImpl()
+    private val out = ArrayList<DanmakuItem>()
+    private var span = 0L
+    private var time = 0L
+
+    @Setup
+    fun setUp() {
+        span = size * INTERVAL_MILLIS
+        resolver.setData(List(size) { DanmakuItem("danmaku $it", it * INTERVAL_MILLIS, Danmaku.TYPE_RL, 0, 0) })
+    }
+
+    @Benchmark
+    fun retrieve(): Int {
+        time += FRAME_MILLIS
+        resolver.retrieve(time, out)
+        val count = out.size
+        for (i in 0 until count) {
+            val item = out[i]
+            resolver.offer(DanmakuItem(item.text, item.time + span, item.type, item.color, item.priority))
+        }
+        out.clear()
+        return count
+    }
+
+    @Benchmark
+    fun retrieveWindow(): Int {
+        time = (time + FRAME_MILLIS) % span
+        resolver.retrieve(time, time + WINDOW_MILLIS, out)
+        val count = out.size
+        out.clear()
+        return count
+    }
+}
@@ -0,0 +1,88 @@
+package top.littlefogcat.easydanmaku.util
+
+import org.openjdk.jmh.annotations.*
+import top.littlefogcat.easydanmaku.danmakus.views.Danmaku
+import top.littlefogcat.esus.view.ViewGroup
+import java.util.concurrent.TimeUnit
+
+/**
+ * Lane churn of scrolling danmakus: each operation releases the lanes of the danmaku shown longest ago and acquires
+ * lanes for a new one, a little slower than the lanes can take them, so that the allocator is kept nearly full.
+ *
+ * The keys are those of scrolling danmakus: a lane is taken from entering until leaving the screen, and may be
+ * reused once the newcomer can't catch up with its occupant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class LaneAllocatorBenchmark {
+    companion object {
+        private const val LANE_HEIGHT = 40
+
+        /** Every few danmakus is two lanes tall, e.g. larger text **/
+        private const val TALL_EVERY = 8
+
+        private const val ENTER_MILLIS = 1000L
+        private const val REUSE_MILLIS = 2000L
+        private const val DURATION_MILLIS = 5000L
+
+        /** Danmakus arrive at this ratio of what the lanes can take **/
+        private const val LOAD = 0.8
+    }
+
+    private class ScrollingLanes(end: Int) : LaneAllocator<Danmaku>(0, end) {
+        override fun keysOf(danmaku: Danmaku, out: LongArray) {
+            out[0] = danmaku.time + ENTER_MILLIS
+            out[1] = danmaku.time + DURATION_MILLIS
+        }
+
+        override fun limitsOf(danmaku: Danmaku, out: LongArray) {
+            out[0] = danmaku.time
+            out[1] = danmaku.time + DURATION_MILLIS - REUSE_MILLIS
+        }
+    }
+
+    /** Count of lanes, e.g. a phone and a large screen **/
+    @Param("27", "108")
+    @JvmField
+    var lanes = 0
+
+    private lateinit var allocator: ScrollingLanes
+
+    /** Danmakus in the order they were acquired, each released when its turn comes again **/
+    private lateinit var shown: Array<Danmaku>
+    private var next = 0
+    private var time = 0L
+    private var step = 0L
+
+    @Setup
+    fun setUp() {
+        allocator = ScrollingLanes(lanes * LANE_HEIGHT)
+        allocator.setLaneHeight(LANE_HEIGHT)
+        // Attached, so that the allocator doesn't take them for leftovers of a torn down container
+        val parent = object : ViewGroup() {
+            override fun onLayout(l: Int, t: Int, r: Int, b: Int) {}
+        }
+        shown = Array((lanes * DURATION_MILLIS / REUSE_MILLIS).toInt()) { i ->
+            Danmaku().also {
+                it.measuredHeight = if (i % TALL_EVERY == 0) LANE_HEIGHT * 2 else LANE_HEIGHT
+                parent.addView(it)
+            }
+        }
+        step = (REUSE_MILLIS / LOAD / lanes).toLong()
+        for (i in 0 until shown.size * 2) {
+            churn()
+        }
+    }
+
+    @Benchmark
+    fun churn(): Int {
+        val danmaku = shown[next]
+        allocator.release(danmaku)
+        danmaku.time = time
+        val top = allocator.acquire(danmaku)
+        next = (next + 1) % shown.size
+        time += step
+        return top
+    }
+}
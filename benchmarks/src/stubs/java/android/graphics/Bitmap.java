@@ -0,0 +1,46 @@
+package android.graphics;
+
+/**
+ * Holds the size of a bitmap, without any pixels.
+ */
+public final class Bitmap {
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_4444, ARGB_8888
+    }
+
+    private final int width;
+    private final int height;
+    private boolean recycled;
+
+    private Bitmap(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getAllocationByteCount() {
+        return width * height * 4;
+    }
+
+    public void eraseColor(int color) {
+    }
+
+    public void recycle() {
+        recycled = true;
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+}
@@ -0,0 +1,51 @@
+package android.graphics;
+
+/**
+ * Draws nothing.
+ */
+public class Canvas {
+    public Canvas() {
+    }
+
+    public boolean isHardwareAccelerated() {
+        return false;
+    }
+
+    public void setBitmap(Bitmap bitmap) {
+    }
+
+    public int save() {
+        return 1;
+    }
+
+    public void restore() {
+    }
+
+    public void translate(float dx, float dy) {
+    }
+
+    public boolean clipRect(Rect rect) {
+        return true;
+    }
+
+    public void drawColor(int color, PorterDuff.Mode mode) {
+    }
+
+    public void drawRect(Rect rect, Paint paint) {
+    }
+
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+    }
+
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+    }
+
+    public void drawText(CharSequence text, int start, int end, float x, float y, Paint paint) {
+    }
+
+    public void drawRenderNode(RenderNode renderNode) {
+    }
+}
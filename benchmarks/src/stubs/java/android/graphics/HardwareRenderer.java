@@ -0,0 +1,35 @@
+package android.graphics;
+
+import android.view.Surface;
+
+public class HardwareRenderer {
+    public final class FrameRenderRequest {
+        public FrameRenderRequest setVsyncTime(long vsyncTime) {
+            return this;
+        }
+
+        public int syncAndDraw() {
+            return 0;
+        }
+    }
+
+    public void setContentRoot(RenderNode content) {
+    }
+
+    public void setOpaque(boolean opaque) {
+    }
+
+    public boolean isOpaque() {
+        return false;
+    }
+
+    public void setSurface(Surface surface) {
+    }
+
+    public FrameRenderRequest createRenderRequest() {
+        return new FrameRenderRequest();
+    }
+
+    public void destroy() {
+    }
+}
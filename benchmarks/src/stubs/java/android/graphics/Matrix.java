@@ -0,0 +1,6 @@
+package android.graphics;
+
+public class Matrix {
+    public void reset() {
+    }
+}
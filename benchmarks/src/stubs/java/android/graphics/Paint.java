@@ -0,0 +1,120 @@
+package android.graphics;
+
+/**
+ * Keeps the attributes set, and measures each character as wide as the text size, with the font metrics of a
+ * typical sans-serif font.
+ */
+public class Paint {
+    public static final int ANTI_ALIAS_FLAG = 1;
+    public static final int FILTER_BITMAP_FLAG = 2;
+
+    public enum Style {
+        FILL, STROKE, FILL_AND_STROKE
+    }
+
+    public static class FontMetricsInt {
+        public int top;
+        public int ascent;
+        public int descent;
+        public int bottom;
+        public int leading;
+    }
+
+    private float textSize = 12;
+    private Typeface typeface;
+    private Style style = Style.FILL;
+    private int color = Color.BLACK;
+    private float strokeWidth;
+    private boolean antiAlias;
+    private Xfermode xfermode;
+
+    public Paint() {
+    }
+
+    public Paint(int flags) {
+        antiAlias = (flags & ANTI_ALIAS_FLAG) != 0;
+    }
+
+    public float getTextSize() {
+        return textSize;
+    }
+
+    public void setTextSize(float textSize) {
+        this.textSize = textSize;
+    }
+
+    public Typeface getTypeface() {
+        return typeface;
+    }
+
+    public Typeface setTypeface(Typeface typeface) {
+        this.typeface = typeface;
+        return typeface;
+    }
+
+    public Style getStyle() {
+        return style;
+    }
+
+    public void setStyle(Style style) {
+        this.style = style;
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public void setColor(int color) {
+        this.color = color;
+    }
+
+    public int getAlpha() {
+        return color >>> 24;
+    }
+
+    public void setAlpha(int alpha) {
+        color = (color & 0xFFFFFF) | (alpha << 24);
+    }
+
+    public float getStrokeWidth() {
+        return strokeWidth;
+    }
+
+    public void setStrokeWidth(float width) {
+        strokeWidth = width;
+    }
+
+    public boolean isAntiAlias() {
+        return antiAlias;
+    }
+
+    public void setAntiAlias(boolean aa) {
+        antiAlias = aa;
+    }
+
+    public Xfermode getXfermode() {
+        return xfermode;
+    }
+
+    public Xfermode setXfermode(Xfermode xfermode) {
+        this.xfermode = xfermode;
+        return xfermode;
+    }
+
+    public float measureText(CharSequence text, int start, int end) {
+        return textSize * (end - start);
+    }
+
+    public int getFontMetricsInt(FontMetricsInt fmi) {
+        int top = -(int) Math.ceil(textSize * 1.22f);
+        int bottom = (int) Math.ceil(textSize * 0.488f);
+        if (fmi != null) {
+            fmi.top = top;
+            fmi.ascent = -(int) Math.ceil(textSize * 0.928f);
+            fmi.descent = (int) Math.ceil(textSize * 0.244f);
+            fmi.bottom = bottom;
+            fmi.leading = 0;
+        }
+        return bottom - top;
+    }
+}
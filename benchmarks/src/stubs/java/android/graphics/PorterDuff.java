@@ -0,0 +1,7 @@
+package android.graphics;
+
+public class PorterDuff {
+    public enum Mode {
+        CLEAR, SRC, DST, SRC_OVER
+    }
+}
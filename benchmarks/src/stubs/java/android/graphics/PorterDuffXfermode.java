@@ -0,0 +1,6 @@
+package android.graphics;
+
+public class PorterDuffXfermode extends Xfermode {
+    public PorterDuffXfermode(PorterDuff.Mode mode) {
+    }
+}
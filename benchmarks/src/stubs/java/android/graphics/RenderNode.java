@@ -0,0 +1,44 @@
+package android.graphics;
+
+public final class RenderNode {
+    public RenderNode(String name) {
+    }
+
+    public boolean setPosition(int left, int top, int right, int bottom) {
+        return true;
+    }
+
+    public int getWidth() {
+        return 0;
+    }
+
+    public int getHeight() {
+        return 0;
+    }
+
+    public boolean hasDisplayList() {
+        return false;
+    }
+
+    public void discardDisplayList() {
+    }
+
+    public boolean setClipToBounds(boolean clipToBounds) {
+        return true;
+    }
+
+    public boolean setTranslationX(float translationX) {
+        return true;
+    }
+
+    public boolean setTranslationY(float translationY) {
+        return true;
+    }
+
+    public Canvas beginRecording(int width, int height) {
+        return new Canvas();
+    }
+
+    public void endRecording() {
+    }
+}
@@ -0,0 +1,20 @@
+package android.graphics.drawable;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+public class BitmapDrawable extends Drawable {
+    private final Bitmap bitmap;
+
+    public BitmapDrawable(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public final Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+    }
+}
@@ -0,0 +1,38 @@
+package android.graphics.drawable;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+public abstract class Drawable {
+    public abstract static class ConstantState {
+        public abstract Drawable newDrawable();
+    }
+
+    private final Rect bounds = new Rect();
+
+    public void setBounds(int left, int top, int right, int bottom) {
+        bounds.set(left, top, right, bottom);
+    }
+
+    public void setBounds(Rect bounds) {
+        this.bounds.set(bounds);
+    }
+
+    public final Rect getBounds() {
+        return bounds;
+    }
+
+    public final Rect copyBounds() {
+        return new Rect(bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
+    public ConstantState getConstantState() {
+        return null;
+    }
+
+    public Drawable mutate() {
+        return this;
+    }
+
+    public abstract void draw(Canvas canvas);
+}
@@ -0,0 +1,46 @@
+package android.os;
+
+/**
+ * Delivers no message.
+ */
+public class Handler {
+    private final Looper looper;
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public final Looper getLooper() {
+        return looper;
+    }
+
+    public final boolean post(Runnable r) {
+        return false;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return false;
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return false;
+    }
+
+    public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+        return false;
+    }
+
+    public final Message obtainMessage(int what, int arg1, int arg2) {
+        Message msg = new Message();
+        msg.what = what;
+        msg.arg1 = arg1;
+        msg.arg2 = arg2;
+        return msg;
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+    }
+}
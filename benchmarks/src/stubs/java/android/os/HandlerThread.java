@@ -0,0 +1,21 @@
+package android.os;
+
+public class HandlerThread extends Thread {
+    private final Looper looper = new Looper();
+
+    public HandlerThread(String name) {
+        super(name);
+    }
+
+    @Override
+    public synchronized void start() {
+    }
+
+    public Looper getLooper() {
+        return looper;
+    }
+
+    public boolean quit() {
+        return true;
+    }
+}
@@ -0,0 +1,7 @@
+package android.os;
+
+public final class Looper {
+    public boolean isCurrentThread() {
+        return false;
+    }
+}
@@ -0,0 +1,10 @@
+package android.os;
+
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+
+    public void sendToTarget() {
+    }
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+public final class Trace {
+    public static boolean isEnabled() {
+        return false;
+    }
+
+    public static void beginSection(String sectionName) {
+    }
+
+    public static void endSection() {
+    }
+
+    public static void setCounter(String counterName, long counterValue) {
+    }
+}
@@ -0,0 +1,16 @@
+package android.text;
+
+import android.graphics.Paint;
+
+public class BoringLayout {
+    public static class Metrics extends Paint.FontMetricsInt {
+        public int width;
+    }
+
+    /**
+     * Never boring here, so that the text is measured by {@link TextPaint}.
+     */
+    public static Metrics isBoring(CharSequence text, TextPaint paint, Metrics metrics) {
+        return null;
+    }
+}
@@ -0,0 +1,12 @@
+package android.text;
+
+import android.graphics.Paint;
+
+public class TextPaint extends Paint {
+    public TextPaint() {
+    }
+
+    public TextPaint(int flags) {
+        super(flags);
+    }
+}
@@ -0,0 +1,53 @@
+package android.util;
+
+import java.util.ArrayList;
+
+/**
+ * Kept sorted by key, like the real one, so that lookups are binary searches.
+ */
+public class LongSparseArray<E> {
+    private long[] keys = new long[10];
+    private final ArrayList<E> values = new ArrayList<>();
+
+    public E get(long key) {
+        int i = java.util.Arrays.binarySearch(keys, 0, values.size(), key);
+        return i < 0 ? null : values.get(i);
+    }
+
+    public void put(long key, E value) {
+        int size = values.size();
+        int i = java.util.Arrays.binarySearch(keys, 0, size, key);
+        if (i >= 0) {
+            values.set(i, value);
+            return;
+        }
+        i = ~i;
+        if (size == keys.length) {
+            keys = java.util.Arrays.copyOf(keys, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        keys[i] = key;
+        values.add(i, value);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public long keyAt(int index) {
+        return keys[index];
+    }
+
+    public E valueAt(int index) {
+        return values.get(index);
+    }
+
+    public void removeAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, values.size() - index - 1);
+        values.remove(index);
+    }
+
+    public void clear() {
+        values.clear();
+    }
+}
@@ -0,0 +1,19 @@
+package android.view;
+
+public final class Choreographer {
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    private static final Choreographer INSTANCE = new Choreographer();
+
+    public static Choreographer getInstance() {
+        return INSTANCE;
+    }
+
+    public void postFrameCallback(FrameCallback callback) {
+    }
+
+    public void removeFrameCallback(FrameCallback callback) {
+    }
+}
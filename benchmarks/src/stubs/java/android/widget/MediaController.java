@@ -0,0 +1,17 @@
+package android.widget;
+
+public class MediaController {
+    public interface MediaPlayerControl {
+        void start();
+
+        void pause();
+
+        int getDuration();
+
+        int getCurrentPosition();
+
+        void seekTo(int pos);
+
+        boolean isPlaying();
+    }
+}
@@ -3,6 +3,8 @@ plugins {
     id("com.android.application") version "7.3.1" apply false
     id("com.android.library") version "7.3.1" apply false
     id("org.jetbrains.kotlin.android") version "1.7.10" apply false
+    id("org.jetbrains.kotlin.jvm") version "1.7.10" apply false
+    id("me.champeau.jmh") version "0.6.8" apply false
 }
 
 tasks.register<Delete>("clean").configure {
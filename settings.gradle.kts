@@ -14,3 +14,4 @@ dependencyResolutionManagement {
 }
 rootProject.name = "SystemTool"
 include(":app")
+include(":benchmarks")